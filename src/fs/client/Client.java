@@ -3,24 +3,41 @@ package fs.client;
 import fs.common.Command;
 import fs.common.CommandHandler;
 import fs.common.DataHandler;
+import fs.common.Delta;
 import fs.common.ExitCode;
+import fs.common.FileBundle;
 import fs.common.InstanceHandler;
 import fs.common.Security;
 import fs.common.Utils;
+import fs.network.Connection;
 import fs.network.NetworkHandler;
+import fs.network.ftp.AsyncFileFragmentAggregator;
+import fs.network.packet.DataChannelPacket;
 import fs.network.packet.DownloadRequestPacket;
 import fs.network.packet.FilesListRequestPacket;
 import fs.network.packet.LoginRequestPacket;
+import fs.network.packet.RangeDownloadRequestPacket;
+import fs.network.packet.SignatureRequestPacket;
 import fs.network.packet.VsfRequestPacket;
+import fs.server.ChunkStore;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
 import io.vertx.core.net.NetClient;
 import io.vertx.core.net.NetSocket;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
 import stg.config.ConfigFormatException;
 import stg.config.ini.IniFile;
-import stg.generic.CompressionHelper;
 import stg.nbt.NbtException;
 import stg.nbt.NbtTagCompound;
 
@@ -29,9 +46,28 @@ public final class Client extends Thread {
     private NetSocket socket;
     private final IniFile config;
     private DataHandler dat;
+    private volatile boolean loggedIn;
+    private volatile boolean stopping;
+    // Transfers by a description of what they transfer. Transfers interrupted by a lost connection stay in here and
+    // are restarted, and so resumed, once logged back in.
+    private final Map<String, Consumer<NetSocket>> pendingTransfers;
+    // how often each transfer has been restarted after failing verification
+    private final Map<String, Integer> retries;
+    // the descriptions of pending downloads by the name their stream arrives under
+    private final Map<String, String> downloads;
+    // delta uploads waiting for the signature of the server's copy, by the name it's stored under
+    private final Map<String, Consumer<Delta.Signature>> pendingSignatures;
+    private static final long RECONNECT_DELAY = 5000L;
+    private static final int MAX_RETRIES = 3;
     
     public Client(String configDir) {
         this.tcpClient = Utils.VERTX.createNetClient();
+        this.loggedIn = false;
+        this.stopping = false;
+        this.pendingTransfers = new ConcurrentHashMap<>();
+        this.retries = new ConcurrentHashMap<>();
+        this.downloads = new ConcurrentHashMap<>();
+        this.pendingSignatures = new ConcurrentHashMap<>();
         initCommandHandler();
         this.config = new IniFile(configDir);
         try {
@@ -51,7 +87,8 @@ public final class Client extends Thread {
         InstanceHandler.commandHandler = new CommandHandler(System.in);
         InstanceHandler.commandHandler.disableCommands(
             Command.CACHE_ACCOUNT, Command.UNCACHE_ACCOUNT, Command.DEL_ACCOUNT,
-            Command.ACCOUNTS, Command.DELETE_FILE // impl. dlt later
+            Command.ACCOUNTS, Command.DELETE_FILE, // impl. dlt later
+            Command.CACHE_STATS
         );
         InstanceHandler.commandHandler.setProcessingCallback(new CommandImpl(this));
     }
@@ -63,6 +100,7 @@ public final class Client extends Thread {
         config.createSection("connect");
         config.putNumber("tcpPort", 5001);
         config.putString("tcpHost", "127.0.0.1");
+        config.setComment("Extra connections large files are striped across, 0 to disable").putNumber("dataChannels", 4);
         config.createSection("login");
         config.setComment("Account username (letters, numbers, and underscores)").putString("username", "");
         config.setComment("Your personal account's password").putString("password", "");
@@ -93,25 +131,201 @@ public final class Client extends Thread {
     }
     
     public void startServer() {
+        AsyncFileFragmentAggregator.sweepStaging();
         InstanceHandler.commandHandler.start();
+        connect(false);
+    }
+    
+    private void connect(boolean reconnecting) {
         tcpClient.connect(config.getNumberAsInteger("connect", "tcpPort"), config.getString("connect", "tcpHost"), result -> {
             if(result.succeeded()) {
                 socket = result.result();
-                InstanceHandler.NETWORK_HANDLER.bindNetworkHandlers(socket);
+                InstanceHandler.NETWORK_HANDLER.bindNetworkHandlers(socket, unused -> connectionLost());
                 InstanceHandler.NETWORK_HANDLER.sendPacket(new LoginRequestPacket(
                     dat.getFileData("cd.nbt").getInteger("accountID"),
                     config.getString("login", "username"),
                     Security.hash(config.getString("login", "password").getBytes(), Security.CLIENT_SALT)
                 ), socket);
-                socket.closeHandler(unused -> {
-                    InstanceHandler.stopThreads();
-                    System.exit(0);
-                });
-            }else
+            }else if(reconnecting)
+                Utils.VERTX.setTimer(RECONNECT_DELAY, id -> connect(true));
+            else
                 Utils.failOnError("Failed to connect to remote server.", ExitCode.NETWORK_ERROR);
         });
     }
     
+    // A connection which was logged in is reestablished, anything else (such as a rejected login) is fatal as before
+    private void connectionLost() {
+        if(stopping) return;
+        if(!loggedIn) {
+            InstanceHandler.stopThreads();
+            System.exit(0);
+        }
+        loggedIn = false;
+        Utils.log("Lost the connection to the server, reconnecting...");
+        Utils.VERTX.setTimer(RECONNECT_DELAY, id -> connect(true));
+    }
+    
+    // called once logged in, which includes logging back in after a reconnect
+    public void sessionStarted(String token) {
+        loggedIn = true;
+        openDataChannels(token);
+        pendingTransfers.values().forEach(transfer -> transfer.accept(socket));
+    }
+    
+    private void startTransfer(String description, Consumer<NetSocket> transfer) {
+        pendingTransfers.put(description, transfer);
+        transfer.accept(socket);
+    }
+    
+    // the stream of a download is only known by its name, which isn't what every download is described by
+    private void startDownload(String name, String description, Consumer<NetSocket> transfer) {
+        downloads.put(name, description);
+        startTransfer(description, transfer);
+    }
+    
+    public void transferFinished(String description) {
+        pendingTransfers.remove(description);
+        retries.remove(description);
+        downloads.values().remove(description);
+    }
+    
+    public void downloadFinished(String name) {
+        String description = downloads.get(name);
+        if(description != null)
+            transferFinished(description);
+    }
+    
+    public void retryDownload(String name) {
+        String description = downloads.get(name);
+        if(description != null)
+            retryTransfer(description);
+    }
+    
+    // Starts a transfer which was cut off by the other end, or which failed verification, again. The restarted stream
+    // resumes where possible, so only what's missing is sent.
+    public void retryTransfer(String description) {
+        Consumer<NetSocket> transfer = pendingTransfers.get(description);
+        if(transfer == null) return;
+        if(retries.merge(description, 1, Integer::sum) > MAX_RETRIES) {
+            Utils.log("Giving up on " + description + ".");
+            transferFinished(description);
+            return;
+        }
+        Utils.log("Retrying " + description + "...");
+        transfer.accept(socket);
+    }
+    
+    private Handler<AsyncResult<Void>> uploadFinished(NetSocket socket, String description, File temporary) {
+        return result -> {
+            // cut off by the connection going away, it is resumed once reconnected
+            if(result.failed() && InstanceHandler.NETWORK_HANDLER.getConnection(socket) == null)
+                return;
+            if(temporary != null) temporary.delete();
+            // the server terminated the stream, most likely over a corrupted fragment
+            if(result.failed())
+                retryTransfer(description);
+            else
+                transferFinished(description);
+        };
+    }
+    
+    // Sends a file for the upload command, picking how from its size
+    private void sendUpload(NetSocket socket, String description, File file, NbtTagCompound nbt, boolean async, int packetSize, boolean temporary) {
+        Handler<AsyncResult<Void>> cleanup = uploadFinished(socket, description, temporary ? file : null);
+        if(file.length() >= NetworkHandler.MIN_STRIPED_FILE_SIZE)
+            InstanceHandler.NETWORK_HANDLER.sendFileStriped(file.getPath(), socket, false, nbt, cleanup);
+        else if(async)
+            InstanceHandler.NETWORK_HANDLER.sendFileAsync(file.getPath(), socket, packetSize, nbt, cleanup);
+        else
+            InstanceHandler.NETWORK_HANDLER.sendFile(file.getPath(), socket, nbt, cleanup);
+    }
+    
+    // Diffs the file against the signature of the server's copy and uploads only the delta (see Delta), or the whole
+    // file if the server has no copy to diff against
+    private void sendDelta(NetSocket socket, String description, File file, NbtTagCompound nbt, int packetSize) {
+        String fileOut = nbt.getString("fileOut");
+        pendingSignatures.put(fileOut, signature -> {
+            if(signature.isEmpty()) {
+                Utils.log("There is no copy of " + fileOut + " to diff against, sending the whole file.");
+                nbt.setBoolean("delta", false);
+                sendUpload(socket, description, file, nbt, true, packetSize, false);
+                return;
+            }
+            Utils.VERTX.<File>executeBlocking(future -> {
+                try {
+                    File delta = new File(Files.createTempFile(file.getName().replaceAll("\\W", "_"), ".delta").toUri());
+                    delta.deleteOnExit();
+                    nbt.setString("deltaHash", Delta.diff(file, signature, delta));
+                    future.complete(delta);
+                }catch(IOException ex) {
+                    future.fail(ex);
+                }
+            }, result -> {
+                if(result.failed()) {
+                    Utils.log("Failed to compute the delta.");
+                    Utils.logError(result.cause());
+                    transferFinished(description);
+                    return;
+                }
+                File delta = result.result();
+                Utils.log("Sending a delta of " + delta.length() + " bytes.");
+                nbt.setBoolean("delta", true);
+                sendUpload(socket, description, delta, nbt, true, packetSize, true);
+            });
+        });
+        InstanceHandler.NETWORK_HANDLER.sendPacket(new SignatureRequestPacket(fileOut, dat.getFileData("cd.nbt").getInteger("accountID")), socket);
+    }
+    
+    // Sends many small files as a single stream, each stored as a file of its own, see FileBundle
+    private void uploadBatch(List<String> paths, String[] downloaders, int compression) {
+        File[] files = new File[paths.size()];
+        Set<String> names = new HashSet<>();
+        for(int i = 0;i < files.length;++ i) {
+            files[i] = new File(paths.get(i));
+            if(!files[i].isFile()) {
+                Utils.log(paths.get(i) + " is not a file.");
+                return;
+            }
+            if(!names.add(files[i].getName())) {
+                Utils.log("More than one of the files is called " + files[i].getName() + ".");
+                return;
+            }
+        }
+        FileBundle bundle = FileBundle.ofFiles(files);
+        NbtTagCompound nbt = new NbtTagCompound();
+        nbt.setBoolean("batch", true);
+        if(compression > 0) nbt.setInteger("compression", compression);
+        nbt.setBoolean("shared", downloaders != null);
+        nbt.setString("username", config.getString("login", "username"));
+        if(downloaders != null) nbt.setStringArray("downloaders", downloaders);
+        String description = "upload " + String.join(", ", paths);
+        startTransfer(description, socket -> InstanceHandler.NETWORK_HANDLER.sendBundle(bundle, "batch", socket, nbt,
+                uploadFinished(socket, description, null)));
+    }
+    
+    public void signatureReceived(String file, Delta.Signature signature) {
+        Consumer<Delta.Signature> upload = pendingSignatures.remove(file);
+        if(upload != null) upload.accept(signature);
+    }
+    
+    // Opens the extra data connections large transfers are striped across, see StripedFileSender
+    private void openDataChannels(String token) {
+        Connection main = InstanceHandler.NETWORK_HANDLER.getConnection(socket);
+        int count = config.getNumberAsInteger("connect", "dataChannels");
+        for(int i = 0;i < count;++ i) {
+            tcpClient.connect(config.getNumberAsInteger("connect", "tcpPort"), config.getString("connect", "tcpHost"), result -> {
+                if(result.failed()) {
+                    Utils.log("Failed to open a data connection.");
+                    return;
+                }
+                NetSocket lane = result.result();
+                // joined before the server hears about it, so nothing striped can arrive on an unknown connection
+                InstanceHandler.NETWORK_HANDLER.bindNetworkHandlers(lane, null).joinSession(main);
+                InstanceHandler.NETWORK_HANDLER.sendPacket(new DataChannelPacket(token), lane);
+            });
+        }
+    }
+    
     @Override
     public void interrupt() {
         stopClient();
@@ -119,6 +333,7 @@ public final class Client extends Thread {
     }
     
     public void stopClient() {
+        stopping = true;
         tcpClient.close();
     }
     
@@ -127,6 +342,40 @@ public final class Client extends Thread {
         InstanceHandler.saveData();
     }
     
+    // "offset[+length]" pairs separated by commas, where a negative offset counts from the end and a missing length
+    // reaches to it. Null if malformed.
+    private static long[] parseRanges(String arg) {
+        String[] parts = arg.split(",");
+        if(parts.length > RangeDownloadRequestPacket.MAX_RANGES)
+            return null;
+        long[] ranges = new long[parts.length * 2];
+        try {
+            for(int i = 0;i < parts.length;++ i) {
+                int plus = parts[i].indexOf('+');
+                ranges[i * 2] = Long.parseLong(plus < 0 ? parts[i] : parts[i].substring(0, plus));
+                ranges[i * 2 + 1] = plus < 0 ? -1L : Long.parseLong(parts[i].substring(plus + 1));
+                if(ranges[i * 2 + 1] < 0 && plus >= 0)
+                    return null;
+            }
+        }catch(NumberFormatException ex) {
+            return null;
+        }
+        return ranges;
+    }
+    
+    // "-compress[:level]", level being a Deflater level which defaults to the fastest
+    private static int parseCompression(String arg) {
+        if(!arg.contains(":"))
+            return Deflater.BEST_SPEED;
+        String level = arg.substring(arg.indexOf(':') + 1);
+        try {
+            return Utils.constrain(Integer.parseInt(level), Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION);
+        }catch(NumberFormatException ex) {
+            Utils.log("Invalid sub-argument: " + level);
+            return Deflater.BEST_SPEED;
+        }
+    }
+    
     private static final class CommandImpl implements BiConsumer<Command, String[]> {
         final Client client;
         
@@ -140,11 +389,13 @@ public final class Client extends Thread {
                 case UPLOAD:
                 {
                     String f = null, fo = null;
-                    boolean async = false, shared = false, zip = false;
-                    int psize = (int)NetworkHandler.MAX_FTP_PACKET_SIZE;
+                    boolean async = false, shared = false, zip = false, delta = false, batch = false;
+                    int psize = (int)NetworkHandler.MAX_FTP_PACKET_SIZE, compression = 0;
                     String[] downloaders = {};
+                    List<String> paths = new ArrayList<>();
                     for(int i = 0;i < args.length;++ i) {
                         if(!args[i].startsWith("-")) {
+                            paths.add(args[i]);
                             if(f == null)
                                 f = args[i];
                             else
@@ -169,11 +420,26 @@ public final class Client extends Thread {
                             }
                         }else if(args[i].toLowerCase().startsWith("-zip"))
                             zip = true;
+                        else if(args[i].toLowerCase().startsWith("-delta"))
+                            delta = true;
+                        else if(args[i].toLowerCase().startsWith("-batch"))
+                            batch = true;
+                        else if(args[i].toLowerCase().startsWith("-compress"))
+                            compression = parseCompression(args[i]);
                         else
                             Utils.log("Invalid argument: " + args[i]);
                     }
                     if(f == null) {
-                        Utils.log("Usage: upload [-async[:packetSize]] [-shared:usernames,...] [-zip] <file> [fileOut]");
+                        Utils.log("Usage: upload [-async[:packetSize]] [-shared:usernames,...] [-zip] [-delta] [-compress[:level]] <file> [fileOut]");
+                        Utils.log("       upload -batch [-shared:usernames,...] [-compress[:level]] <files...>");
+                        return;
+                    }
+                    if(batch) {
+                        client.uploadBatch(paths, shared ? downloaders : null, compression);
+                        return;
+                    }
+                    if(zip && delta) {
+                        Utils.log("-delta can't be used with -zip, zipping a directory again doesn't keep the layout of the old zip.");
                         return;
                     }
                     File file = new File(f);
@@ -182,47 +448,90 @@ public final class Client extends Thread {
                         return;
                     }
                     
+                    FileBundle bundle = null;
                     if(file.isDirectory() && !zip) {
                         Utils.log("That path points to a directory. Rerun the command with -zip to upload the directory as a zip.");
                         return;
                     }else if(file.isDirectory() && zip) {
+                        // the files are streamed as they're read, the server zips them once they're all in
                         try {
-                            Utils.log("Zipping directory...");
-                            File tmp = new File(Files.createTempFile(file.getName().replaceAll("\\W", "_"), ".tmp").toUri());
-                            fo = fo == null ? file.getName() + ".zip" : fo;
-                            tmp.deleteOnExit();
-                            CompressionHelper.zipFileOrDirectory(file, tmp, false);
-                            f = tmp.getAbsolutePath();
-                            file = tmp;
-                            Utils.log("Finished zipping directory.");
+                            bundle = FileBundle.ofDirectory(file);
                         }catch(IOException ex) {
                             Utils.log(ex);
                             return;
                         }
+                        fo = fo == null ? file.getName() + ".zip" : fo;
                     }
-                    if(file.length() > 655200L && !async) {
+                    if(bundle == null && file.length() > 655200L && !async) {
                         Utils.log("This file is too large to be sent synchronously. It will be sent asynchronously instead.");
                         async = true;
                     }
                     NbtTagCompound nbt = new NbtTagCompound();
+                    if(delta && fo == null)
+                        fo = file.getName();
+                    if(bundle == null && file.length() >= ChunkStore.CHUNK_SIZE && !delta) {
+                        // lets the server skip the chunks the file shares with the copy it replaces
+                        try {
+                            nbt.setStringArray("chunks", ChunkStore.hashChunks(file));
+                        }catch(IOException ex) {
+                            Utils.logError(ex);
+                        }
+                    }
+                    if(compression > 0) nbt.setInteger("compression", compression);
                     nbt.setBoolean("shared", shared);
                     nbt.setString("username", client.config.getString("login", "username"));
                     if(fo != null) nbt.setString("fileOut", fo);
                     if(shared) nbt.setStringArray("downloaders", downloaders);
-                    if(async)
-                        InstanceHandler.NETWORK_HANDLER.sendFileAsync(f, client.socket, Utils.constrain(psize, 1024, (int)NetworkHandler.MAX_FTP_PACKET_SIZE), nbt);
+                    File sent = file;
+                    FileBundle tree = bundle;
+                    String name = fo;
+                    boolean sendAsync = async;
+                    int packetSize = Utils.constrain(psize, 1024, (int)NetworkHandler.MAX_FTP_PACKET_SIZE);
+                    String description = "upload " + f;
+                    if(tree != null)
+                        client.startTransfer(description, socket -> InstanceHandler.NETWORK_HANDLER.sendBundle(tree, name, socket, nbt,
+                                client.uploadFinished(socket, description, null)));
+                    else if(delta)
+                        client.startTransfer(description, socket -> client.sendDelta(socket, description, sent, nbt, packetSize));
                     else
-                        InstanceHandler.NETWORK_HANDLER.sendFile(f, client.socket, nbt);
-                    if(zip) file.delete();
+                        client.startTransfer(description, socket -> client.sendUpload(socket, description, sent, nbt, sendAsync, packetSize, false));
                     break;
                 }
                 case DOWNLOAD:
                 {
-                    if(args.length < 1) {
-                        Utils.log("Usage: download <file>");
+                    String requested = null;
+                    long[] ranges = null;
+                    int compression = 0;
+                    for(int i = 0;i < args.length;++ i) {
+                        if(args[i].toLowerCase().startsWith("-compress"))
+                            compression = parseCompression(args[i]);
+                        else if(args[i].toLowerCase().startsWith("-range:")) {
+                            ranges = parseRanges(args[i].substring(7));
+                            if(ranges == null) {
+                                Utils.log("Invalid range format. Use: -range:offset[+length],...");
+                                return;
+                            }
+                        }else if(requested == null)
+                            requested = args[i];
+                        else
+                            Utils.log("Invalid argument: " + args[i]);
+                    }
+                    if(requested == null) {
+                        Utils.log("Usage: download [-range:offset[+length],...] [-compress[:level]] <file>");
                         return;
                     }
-                    InstanceHandler.NETWORK_HANDLER.sendPacket(new DownloadRequestPacket(args[0], client.dat.getFileData("cd.nbt").getInteger("accountID")), client.socket);
+                    if(ranges != null) {
+                        String file = requested;
+                        long[] requestedRanges = ranges;
+                        client.startDownload(RangeDownloadRequestPacket.rangeFileName(file), "download of ranges of " + file, socket -> InstanceHandler.NETWORK_HANDLER.sendPacket(
+                                new RangeDownloadRequestPacket(file, client.dat.getFileData("cd.nbt").getInteger("accountID"), requestedRanges), socket));
+                        break;
+                    }
+                    String file = requested;
+                    int level = compression;
+                    // finished by FileStreamClosePacket.ClientHandler
+                    client.startDownload(new File(file).getName(), "download " + file, socket -> InstanceHandler.NETWORK_HANDLER.sendPacket(
+                            new DownloadRequestPacket(file, client.dat.getFileData("cd.nbt").getInteger("accountID"), level), socket));
                     break;
                 }
                 case LISTFILES:
@@ -14,7 +14,8 @@ public enum Command {
     DEL_ACCOUNT(false, "delete-account", "da"),
     ACCOUNTS,
     DELETE_FILE(false, "delete", "dlt"),
-    VIEW_SHARED_FILES(false, "view-shared-files", "vsf");
+    VIEW_SHARED_FILES(false, "view-shared-files", "vsf"),
+    CACHE_STATS(false, "cache-stats", "cs");
     
     public static final Command[] VALUES = values();
     
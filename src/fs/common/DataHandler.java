@@ -3,6 +3,8 @@ package fs.common;
 import fs.server.FilePermission;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.Map;
 import stg.nbt.NbtException;
@@ -48,8 +50,14 @@ public final class DataHandler {
             if(!file.exists())
                 createFile(sfile);
             //NbtIO.updateNBT(file);
-            NbtIO.writeNbt(file, e.getValue());
+            // written next to the file, synced and moved over it, so a crash can't leave it half written
+            File tmp = wrap(sfile + ".tmp");
+            NbtIO.writeNbt(tmp, e.getValue());
+            Utils.sync(tmp);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         }
+        // the moves are only durable once the directory is
+        Utils.sync(wrap(baseDir));
     }
     
     public void loadData() throws IOException, NbtException {
@@ -0,0 +1,292 @@
+package fs.common;
+
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// rsync style deltas. The holder of the old copy of a file describes it with a Signature (a rolling weak checksum and
+// a strong hash per block), the holder of the new copy looks for those blocks at every offset of its copy and writes
+// copy instructions for the ones it finds and literals for everything else, and the old copy is patched into the new
+// one. What's sent is proportional to what changed rather than to the size of the file.
+public final class Delta {
+    private static final int MIN_BLOCK_SIZE = 2048;
+    private static final int MAX_BLOCK_SIZE = 128 << 10;
+    private static final int STRONG_HASH_SIZE = 16;
+    private static final int IO_BUFFER_SIZE = 64 << 10;
+    private static final byte COPY = 0, LITERAL = 1;
+    
+    private Delta() { }
+    
+    // Random access to the old copy
+    @FunctionalInterface
+    public interface Source {
+        void read(long position, byte[] buf, int off, int len) throws IOException;
+    }
+    
+    // about the square root of the size, which balances the size of the signature against that of the delta
+    public static int blockSize(long size) {
+        return (int)Math.min(MAX_BLOCK_SIZE, Math.max(MIN_BLOCK_SIZE, (long)Math.sqrt(size) & ~7L));
+    }
+    
+    public static Signature signature(Source base, long size) throws IOException {
+        int blockSize = blockSize(size);
+        int count = (int)((size + blockSize - 1) / blockSize);
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * STRONG_HASH_SIZE];
+        byte[] block = new byte[blockSize];
+        MessageDigest md5 = digest("MD5");
+        for(int i = 0;i < count;++ i) {
+            int len = (int)Math.min(blockSize, size - (long)i * blockSize);
+            base.read((long)i * blockSize, block, 0, len);
+            weak[i] = weakChecksum(block, len);
+            md5.update(block, 0, len);
+            System.arraycopy(md5.digest(), 0, strong, i * STRONG_HASH_SIZE, STRONG_HASH_SIZE);
+        }
+        return new Signature(blockSize, size, weak, strong);
+    }
+    
+    // Writes the delta which turns the copy described by the signature into the file, and returns the SHA-256 of the
+    // file so the patched result can be checked against it
+    public static String diff(File file, Signature signature, File out) throws IOException {
+        int blockSize = signature.blockSize;
+        int fullBlocks = (int)(signature.size / blockSize);
+        // chains of the full blocks by weak checksum, lowest index first
+        IntObjectMap<Integer> firstBlock = new IntObjectHashMap<>();
+        int[] nextBlock = new int[fullBlocks];
+        for(int i = fullBlocks - 1;i >= 0;-- i) {
+            Integer next = firstBlock.put(signature.weak[i], Integer.valueOf(i));
+            nextBlock[i] = next == null ? -1 : next;
+        }
+        MessageDigest md5 = digest("MD5"), sha256 = digest("SHA-256");
+        try(InputStream in = new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE);
+                DataOutputStream delta = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out), IO_BUFFER_SIZE))) {
+            delta.writeInt(blockSize);
+            delta.writeLong(file.length());
+            Writer writer = new Writer(delta);
+            // the window is circular, start being the index of its first byte
+            byte[] window = new byte[blockSize];
+            int start = 0, filled = fill(in, window, sha256);
+            int a = 0, b = 0;
+            for(int i = 0;i < filled;++ i) {
+                a += window[i] & 0xFF;
+                b += (blockSize - i) * (window[i] & 0xFF);
+            }
+            while(filled == blockSize) {
+                int match = -1;
+                Integer candidate = firstBlock.get((a & 0xFFFF) | (b << 16));
+                if(candidate != null) {
+                    md5.update(window, start, blockSize - start);
+                    md5.update(window, 0, start);
+                    byte[] strong = md5.digest();
+                    for(int i = candidate;i >= 0 && match < 0;i = nextBlock[i]) {
+                        if(signature.strongEquals(i, strong))
+                            match = i;
+                    }
+                }
+                if(match >= 0) {
+                    writer.copy(match);
+                    start = 0;
+                    filled = fill(in, window, sha256);
+                    a = b = 0;
+                    for(int i = 0;i < filled;++ i) {
+                        a += window[i] & 0xFF;
+                        b += (blockSize - i) * (window[i] & 0xFF);
+                    }
+                    continue;
+                }
+                int removed = window[start] & 0xFF, added = in.read();
+                writer.literal(window[start]);
+                if(added < 0) {
+                    // what's left of the window is the tail of the file
+                    byte[] tail = new byte[blockSize];
+                    System.arraycopy(window, start + 1, tail, 0, blockSize - start - 1);
+                    System.arraycopy(window, 0, tail, blockSize - start - 1, start);
+                    window = tail;
+                    filled = blockSize - 1;
+                    break;
+                }
+                sha256.update((byte)added);
+                window[start] = (byte)added;
+                start = (start + 1) % blockSize;
+                a += added - removed;
+                b += a - blockSize * removed;
+            }
+            // a short tail can still match the short last block of the old copy
+            int lastBlock = signature.weak.length - 1;
+            if(filled > 0 && lastBlock >= fullBlocks && signature.size - (long)lastBlock * blockSize == filled
+                    && signature.weak[lastBlock] == weakChecksum(window, filled)) {
+                md5.update(window, 0, filled);
+                if(signature.strongEquals(lastBlock, md5.digest())) {
+                    writer.copy(lastBlock);
+                    filled = 0;
+                }
+            }
+            for(int i = 0;i < filled;++ i)
+                writer.literal(window[i]);
+            writer.flush();
+        }
+        return Security.toHex(sha256.digest());
+    }
+    
+    // Rebuilds the new copy from the old one and a delta, failing if the result doesn't hash to what diff returned
+    public static void patch(File delta, Source base, long baseSize, File out, String expectedHash) throws IOException {
+        MessageDigest sha256 = digest("SHA-256");
+        byte[] buf = new byte[IO_BUFFER_SIZE];
+        long size, written = 0;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(delta), IO_BUFFER_SIZE));
+                OutputStream target = new BufferedOutputStream(new FileOutputStream(out), IO_BUFFER_SIZE)) {
+            int blockSize = in.readInt();
+            size = in.readLong();
+            int op;
+            while((op = in.read()) >= 0) {
+                if(op == COPY) {
+                    long position = (long)in.readInt() * blockSize;
+                    long end = Math.min(baseSize, position + (long)in.readInt() * blockSize);
+                    if(position < 0 || position >= end)
+                        throw new IOException("The delta refers to blocks past the end of the stored copy.");
+                    while(position < end) {
+                        int len = (int)Math.min(buf.length, end - position);
+                        base.read(position, buf, 0, len);
+                        sha256.update(buf, 0, len);
+                        target.write(buf, 0, len);
+                        position += len;
+                        written += len;
+                    }
+                }else if(op == LITERAL) {
+                    for(int remaining = in.readInt();remaining > 0;) {
+                        int len = Math.min(buf.length, remaining);
+                        in.readFully(buf, 0, len);
+                        sha256.update(buf, 0, len);
+                        target.write(buf, 0, len);
+                        remaining -= len;
+                        written += len;
+                    }
+                }else
+                    throw new IOException("Malformed delta.");
+            }
+        }
+        if(written != size || !Security.toHex(sha256.digest()).equals(expectedHash))
+            throw new IOException("The patched file doesn't match the uploaded one, the stored copy may have changed since it was diffed against.");
+    }
+    
+    // reads until the buffer is full or the stream ends
+    private static int fill(InputStream in, byte[] buf, MessageDigest sha256) throws IOException {
+        int len = 0, read;
+        while(len < buf.length && (read = in.read(buf, len, buf.length - len)) > 0)
+            len += read;
+        sha256.update(buf, 0, len);
+        return len;
+    }
+    
+    // Adler-32 without the modulus, as in rsync. The halves are rolled by diff without recomputing the sums.
+    private static int weakChecksum(byte[] buf, int len) {
+        int a = 0, b = 0;
+        for(int i = 0;i < len;++ i) {
+            a += buf[i] & 0xFF;
+            b += (len - i) * (buf[i] & 0xFF);
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+    
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        }catch(NoSuchAlgorithmException ex) {
+            throw new InternalError(ex);
+        }
+    }
+    
+    // Coalesces runs of consecutive blocks into one copy instruction and buffers literals
+    private static final class Writer {
+        final DataOutputStream out;
+        final byte[] literal;
+        int literalLength, copyStart, copyCount;
+    
+        Writer(DataOutputStream out) {
+            this.out = out;
+            this.literal = new byte[IO_BUFFER_SIZE];
+            this.literalLength = 0;
+            this.copyStart = -1;
+            this.copyCount = 0;
+        }
+    
+        void copy(int block) throws IOException {
+            flushLiteral();
+            if(copyCount > 0 && copyStart + copyCount == block) {
+                ++ copyCount;
+                return;
+            }
+            flushCopy();
+            copyStart = block;
+            copyCount = 1;
+        }
+    
+        void literal(byte b) throws IOException {
+            flushCopy();
+            if(literalLength == literal.length)
+                flushLiteral();
+            literal[literalLength++] = b;
+        }
+    
+        void flush() throws IOException {
+            flushCopy();
+            flushLiteral();
+        }
+    
+        private void flushCopy() throws IOException {
+            if(copyCount == 0) return;
+            out.writeByte(COPY);
+            out.writeInt(copyStart);
+            out.writeInt(copyCount);
+            copyCount = 0;
+        }
+    
+        private void flushLiteral() throws IOException {
+            if(literalLength == 0) return;
+            out.writeByte(LITERAL);
+            out.writeInt(literalLength);
+            out.write(literal, 0, literalLength);
+            literalLength = 0;
+        }
+    }
+    
+    public static final class Signature {
+        // what's sent for a file there is no old copy of
+        public static final Signature EMPTY = new Signature(MIN_BLOCK_SIZE, 0L, new int[0], new byte[0]);
+        public final int blockSize;
+        public final long size;
+        public final int[] weak;
+        // the MD5s of the blocks back to back
+        public final byte[] strong;
+    
+        public Signature(int blockSize, long size, int[] weak, byte[] strong) {
+            this.blockSize = blockSize;
+            this.size = size;
+            this.weak = weak;
+            this.strong = strong;
+        }
+    
+        public boolean isEmpty() {
+            return weak.length == 0;
+        }
+    
+        private boolean strongEquals(int block, byte[] hash) {
+            for(int i = 0;i < STRONG_HASH_SIZE;++ i) {
+                if(strong[block * STRONG_HASH_SIZE + i] != hash[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package fs.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import stg.nbt.NbtTagCompound;
+
+// Several files sent as a single stream: their contents back to back, described by an index of entry names and sizes
+// which travels in the stream data. Directories are entries of their own, empty and named with a trailing slash, so
+// empty ones aren't lost.
+public final class FileBundle {
+    private final String[] names;
+    private final long[] sizes;
+    // where each entry starts in the stream
+    private final long[] offsets;
+    // the files on the sending side, null for directories and on the receiving side
+    private final File[] files;
+    
+    private FileBundle(String[] names, long[] sizes, File[] files) {
+        this.names = names;
+        this.sizes = sizes;
+        this.offsets = new long[sizes.length];
+        for(int i = 1;i < sizes.length;++ i)
+            offsets[i] = offsets[i - 1] + sizes[i - 1];
+        this.files = files;
+    }
+    
+    // everything under the directory, named relative to it
+    public static FileBundle ofDirectory(File dir) throws IOException {
+        Path root = dir.toPath();
+        List<Path> paths;
+        try(Stream<Path> walk = Files.walk(root)) {
+            paths = walk.filter(p -> !p.equals(root)).sorted().collect(Collectors.toList());
+        }
+        String[] names = new String[paths.size()];
+        long[] sizes = new long[names.length];
+        File[] files = new File[names.length];
+        for(int i = 0;i < names.length;++ i) {
+            File file = paths.get(i).toFile();
+            names[i] = root.relativize(paths.get(i)).toString().replace(File.separatorChar, '/');
+            if(file.isDirectory())
+                names[i] += "/";
+            else{
+                sizes[i] = file.length();
+                files[i] = file;
+            }
+        }
+        return new FileBundle(names, sizes, files);
+    }
+    
+    // the files by their names alone
+    public static FileBundle ofFiles(File[] files) {
+        String[] names = new String[files.length];
+        long[] sizes = new long[files.length];
+        for(int i = 0;i < files.length;++ i) {
+            names[i] = files[i].getName();
+            sizes[i] = files[i].length();
+        }
+        return new FileBundle(names, sizes, files.clone());
+    }
+    
+    // Null if the stream isn't a bundle or its index is malformed
+    public static FileBundle read(NbtTagCompound streamData) {
+        if(!streamData.containsKey("bundleEntries") || !streamData.containsKey("bundleSizes"))
+            return null;
+        String[] names = streamData.getStringArray("bundleEntries");
+        String[] sizeStrings = streamData.getStringArray("bundleSizes");
+        if(names.length != sizeStrings.length)
+            return null;
+        long[] sizes = new long[names.length];
+        try {
+            for(int i = 0;i < sizes.length;++ i) {
+                sizes[i] = Long.parseLong(sizeStrings[i]);
+                if(sizes[i] < 0) return null;
+            }
+        }catch(NumberFormatException ex) {
+            return null;
+        }
+        return new FileBundle(names, sizes, new File[names.length]);
+    }
+    
+    public void write(NbtTagCompound streamData) {
+        String[] sizeStrings = new String[sizes.length];
+        for(int i = 0;i < sizes.length;++ i)
+            sizeStrings[i] = Long.toString(sizes[i]);
+        streamData.setStringArray("bundleEntries", names);
+        streamData.setStringArray("bundleSizes", sizeStrings);
+    }
+    
+    public int size() {
+        return names.length;
+    }
+    
+    public long totalSize() {
+        return names.length == 0 ? 0L : offsets[names.length - 1] + sizes[names.length - 1];
+    }
+    
+    public String getName(int entry) {
+        return names[entry];
+    }
+    
+    public File getFile(int entry) {
+        return files[entry];
+    }
+    
+    public long getOffset(int entry) {
+        return offsets[entry];
+    }
+    
+    public long getSize(int entry) {
+        return sizes[entry];
+    }
+    
+    // The entry holding the byte at `position`. Since an entry starts where the last one ended, the last entry
+    // starting at or before the position is never an empty one.
+    public int entryAt(long position) {
+        int low = 0, high = offsets.length - 1;
+        while(low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if(offsets[mid] <= position)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+    
+    // Like FileStreamSender.fingerprint, from the names, sizes and modification times of the entries
+    public String fingerprint() {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            for(int i = 0;i < names.length;++ i) {
+                sha256.update(names[i].getBytes(StandardCharsets.UTF_8));
+                sha256.update(Long.toString(sizes[i]).getBytes(StandardCharsets.UTF_8));
+                if(files[i] != null)
+                    sha256.update(Long.toString(files[i].lastModified()).getBytes(StandardCharsets.UTF_8));
+            }
+            return Security.toHex(sha256.digest());
+        }catch(NoSuchAlgorithmException ex) {
+            throw new InternalError(ex);
+        }
+    }
+    
+    // Writes the received contents of the bundle out as a zip of its entries
+    public void zip(File contents, File out) throws IOException {
+        if(contents.length() != totalSize())
+            throw new IOException("The index of the bundle doesn't match its contents.");
+        byte[] buf = new byte[64 << 10];
+        try(InputStream in = new BufferedInputStream(new FileInputStream(contents), buf.length);
+                ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(out), buf.length))) {
+            for(int i = 0;i < names.length;++ i) {
+                zip.putNextEntry(new ZipEntry(names[i]));
+                for(long remaining = sizes[i];remaining > 0;) {
+                    int read = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+                    if(read < 0)
+                        throw new EOFException();
+                    zip.write(buf, 0, read);
+                    remaining -= read;
+                }
+                zip.closeEntry();
+            }
+        }
+    }
+}
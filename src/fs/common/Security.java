@@ -2,6 +2,7 @@ package fs.common;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 
 public final class Security {
     public static final byte[] SERVER_SALT =
@@ -12,8 +13,23 @@ public final class Security {
     {-108, -16, -23, -98, -83, -61, 112, 105, 24, 3, -114, -127, 68, -40, 118, 104,
      113, -10, 65, -92, 82, 109, -90, -48, -40, -82, -41, -79, 18, 110, -7, 69};
     
+    private static final SecureRandom RANDOM = new SecureRandom();
+    
     private Security() { }
     
+    // 128 random bits as hex
+    public static String newSessionToken() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        return toHex(bytes);
+    }
+    
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+    
     public static byte[] hash(byte[] bytes, byte[] salt) {
         MessageDigest sha256;
         try {
@@ -2,6 +2,9 @@ package fs.common;
 
 import io.vertx.core.Vertx;
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -89,6 +92,16 @@ public final class Utils {
         return String.join(File.separator, pathElements);
     }
     
+    // Forces a file, or the entries of a directory, to disk. Not every platform lets a directory be opened, in which
+    // case its entries are left to the file system.
+    public static void sync(File file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }catch(IOException ex) {
+            if(!file.isDirectory()) throw ex;
+        }
+    }
+    
     public static int constrain(int num, int min, int max) {
         return num < min ? min : (num > max ? max : num);
     }
@@ -0,0 +1,207 @@
+package fs.network;
+
+import fs.common.InstanceHandler;
+import fs.common.Utils;
+import fs.network.ftp.AsyncFileFragmentAggregator;
+import fs.network.ftp.FileFragmentPacket;
+import fs.network.ftp.FileStreamClosePacket;
+import fs.network.ftp.FileStreamCreditPacket;
+import fs.network.ftp.FileStreamResumePacket;
+import fs.network.ftp.FileStreamStartPacket;
+import fs.network.ftp.TerminateFileStreamPacket;
+import fs.network.packet.InfoLogPacket;
+import fs.network.packet.Packet;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+// Note: the AsyncFileFragmentAggregator is not prefixed by "Async" for a reason
+// Streams are looked up by the id assigned in their FileStreamStartPacket, see Connection.nextStreamID. A session's
+// data connections share one handler and run on different event loops, so the maps are only touched while holding
+// its lock, but fragments are written outside of it.
+final class AsyncFTPHandler {
+    private final NetworkHandler net;
+    // the main connection of the session, whose data connections share the handler
+    private final Connection main;
+    // fragments and closes of streams whose start packet hasn't been handled yet
+    final IntObjectMap<List<FileFragmentPacket>> fragmentQueue;
+    // Bytes held by the fragment queue. A sender only gets ahead of its start packet by the windows of its stripes, so
+    // more than a few streams' worth (see maxQueuedBytes) means the other end isn't waiting for credits, and the
+    // connection the fragment came in on is closed.
+    private long queuedBytes;
+    final IntObjectMap<FileStreamClosePacket> streamCloseQueue;
+    final IntObjectMap<AsyncFileFragmentAggregator> aggregators;
+    
+    public AsyncFTPHandler(NetworkHandler net, Connection main) {
+        this.net = net;
+        this.main = main;
+        this.fragmentQueue = new IntObjectHashMap<>();
+        this.queuedBytes = 0L;
+        this.streamCloseQueue = new IntObjectHashMap<>();
+        this.aggregators = new IntObjectHashMap<>();
+    }
+    
+    public synchronized void handleFileStreamStart(FileStreamStartPacket fssp) {
+        AsyncFileFragmentAggregator ffa;
+        try {
+            ffa = new AsyncFileFragmentAggregator(fssp);
+        }catch(IOException ex) {
+            Utils.log("Failed to start receiving " + fssp.getName() + ".");
+            Utils.logError(ex);
+            dequeueFragments(fssp.getStreamID());
+            streamCloseQueue.remove(fssp.getStreamID());
+            net.sendPacket(new TerminateFileStreamPacket(fssp.getStreamID()), fssp.getSocket());
+            return;
+        }
+        aggregators.put(ffa.getStreamID(), ffa);
+        // sent ahead of the first credits, so the sender knows what to skip before it sends anything
+        BitSet received = ffa.getReceivedSections();
+        if(!received.isEmpty())
+            net.sendPacket(new FileStreamResumePacket(ffa.getStreamID(), received), fssp.getSocket());
+        // the stripes of a striped stream start out with their share of the window
+        if(ffa.getStripes() == 0)
+            net.sendPacket(new FileStreamCreditPacket(ffa.getStreamID(), AsyncFileFragmentAggregator.INITIAL_WINDOW), fssp.getSocket());
+        List<FileFragmentPacket> queued = dequeueFragments(ffa.getStreamID());
+        if(queued != null) {
+            for(FileFragmentPacket ffp : queued) {
+                if(!ffa.acceptFragment(ffp)) {
+                    if(ffa.isCorrupted()) {
+                        abandon(ffa, ffp);
+                        return;
+                    }
+                    continue;
+                }
+                int credits = ffa.releaseCredits(ffp.getSocket(), ffa.creditedLength(ffp));
+                if(credits > 0)
+                    net.sendPacket(new FileStreamCreditPacket(ffa.getStreamID(), credits), ffp.getSocket());
+            }
+        }
+        FileStreamClosePacket fscp = streamCloseQueue.get(ffa.getStreamID());
+        if(fscp != null)
+            tryAggregatorClose(ffa, fscp);
+    }
+    
+    public void handleFileFragment(FileFragmentPacket ffp) {
+        AsyncFileFragmentAggregator ffa;
+        synchronized(this) {
+            ffa = aggregators.get(ffp.getStreamID());
+            if(ffa == null) {
+                queuedBytes += ffp.getSerializedSize();
+                if(queuedBytes > maxQueuedBytes()) {
+                    Utils.log("Too many fragments arrived ahead of their stream, closing the connection.");
+                    dequeueFragments(ffp.getStreamID());
+                    queuedBytes -= ffp.getSerializedSize();
+                    ffp.getSocket().close();
+                    return;
+                }
+                fragmentQueue.computeIfAbsent(ffp.getStreamID(), id -> new ArrayList<>()).add(ffp);
+                return;
+            }
+        }
+        if(!ffa.acceptFragment(ffp)) {
+            if(ffa.isCorrupted())
+                abandon(ffa, ffp);
+            return;
+        }
+        // the fragment has been written out, so its space in the window can be handed back to whoever sent it
+        int credits = ffa.releaseCredits(ffp.getSocket(), ffa.creditedLength(ffp));
+        if(credits > 0)
+            net.sendPacket(new FileStreamCreditPacket(ffa.getStreamID(), credits), ffp.getSocket());
+        synchronized(this) {
+            FileStreamClosePacket fscp = streamCloseQueue.get(ffa.getStreamID());
+            if(fscp != null)
+                tryAggregatorClose(ffa, fscp);
+        }
+    }
+    
+    public synchronized void handleFileStreamClose(FileStreamClosePacket fscp) {
+        AsyncFileFragmentAggregator ffa = aggregators.get(fscp.getStreamID());
+        streamCloseQueue.put(fscp.getStreamID(), fscp);
+        if(ffa != null)
+            tryAggregatorClose(ffa, fscp);
+    }
+    
+    // Stream ids are only unique per sending side, but the two sides hand out ids of different parity, so this can't
+    // hit one of our own outgoing streams
+    public synchronized void handleStreamTermination(TerminateFileStreamPacket tfsp) {
+        dequeueFragments(tfsp.getStreamID());
+        streamCloseQueue.remove(tfsp.getStreamID());
+        AsyncFileFragmentAggregator ffa = aggregators.remove(tfsp.getStreamID());
+        if(ffa != null) {
+            Utils.log("Failed to transfer file \"" + ffa.getName() + "\". Stream terminated.");
+            ffa.suspend();
+        }
+    }
+    
+    // A fragment failed its CRC check. The stream is suspended and terminated, and whoever started the transfer starts
+    // it again, which resumes it and so sends only what's missing.
+    private synchronized void abandon(AsyncFileFragmentAggregator ffa, FileFragmentPacket ffp) {
+        // the other stripes of the stream may have got here first
+        if(aggregators.remove(ffa.getStreamID()) == null)
+            return;
+        dequeueFragments(ffa.getStreamID());
+        streamCloseQueue.remove(ffa.getStreamID());
+        Utils.log("A fragment of \"" + ffa.getName() + "\" was corrupted in transit.");
+        ffa.suspend();
+        net.sendPacket(new TerminateFileStreamPacket(ffa.getStreamID()), ffp.getSocket());
+        if(InstanceHandler.side() == Side.CLIENT)
+            InstanceHandler.client.retryDownload(ffa.getName());
+    }
+    
+    // the windows of a stream striped across every data connection (see AsyncFileFragmentAggregator.stripeWindow), for
+    // a few streams at once
+    private long maxQueuedBytes() {
+        int stripes = Math.max(1, main.getLanes().size());
+        return 4L * Math.max(AsyncFileFragmentAggregator.INITIAL_WINDOW, stripes * 4L * NetworkHandler.MAX_FILE_REGION_SIZE);
+    }
+    
+    // null if none of the stream's fragments were queued
+    private List<FileFragmentPacket> dequeueFragments(int streamID) {
+        List<FileFragmentPacket> queued = fragmentQueue.remove(streamID);
+        if(queued != null)
+            for(FileFragmentPacket ffp : queued)
+                queuedBytes -= ffp.getSerializedSize();
+        return queued;
+    }
+    
+    // Fragments can overtake the close packet of their stream, so it waits in the queue until all of them are in
+    private boolean tryAggregatorClose(AsyncFileFragmentAggregator ffa, FileStreamClosePacket fscp) {
+        if(!ffa.finish(fscp))
+            return false;
+        streamCloseQueue.remove(fscp.getStreamID());
+        aggregators.remove(ffa.getStreamID());
+        if(!ffa.verify(fscp)) {
+            Utils.log("\"" + ffa.getName() + "\" didn't get the fragments its sender sent and was discarded.");
+            ffa.discard();
+            if(InstanceHandler.side() == Side.CLIENT)
+                InstanceHandler.client.retryDownload(ffa.getName());
+            else
+                net.sendPacket(new InfoLogPacket(ffa.getName() + " was corrupted in transit, upload it again."), fscp.getSocket());
+            return true;
+        }
+        Packet response = net.getPacketData(fscp, InstanceHandler.side()).handle(fscp, fscp.getSocket());
+        if(response != null)
+            net.sendPacket(response, fscp.getSocket());
+        return true;
+    }
+    
+    public synchronized void forceClear() {
+        // copied since closing an aggregator removes it
+        new ArrayList<>(aggregators.values()).forEach(ffa -> {
+            FileStreamClosePacket fscp = streamCloseQueue.get(ffa.getStreamID());
+            if(fscp != null)
+                tryAggregatorClose(ffa, fscp);
+        });
+        fragmentQueue.clear();
+        queuedBytes = 0L;
+        streamCloseQueue.clear();
+        aggregators.values().forEach(ffa -> {
+            if(!ffa.finished())
+                ffa.suspend();
+        });
+        aggregators.clear();
+    }
+}
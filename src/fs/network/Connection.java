@@ -0,0 +1,172 @@
+package fs.network;
+
+import fs.common.InstanceHandler;
+import fs.common.Utils;
+import fs.network.ftp.FileStreamCreditPacket;
+import fs.network.ftp.FileStreamResumePacket;
+import fs.network.ftp.FileStreamSender;
+import fs.network.ftp.TerminateFileStreamPacket;
+import fs.server.Account;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.net.NetSocket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public final class Connection {
+    private final NetSocket socket;
+    private final Context context;
+    private final Queue<Runnable> drainListeners;
+    private final IntObjectMap<FileStreamSender> senders;
+    private final FrameDecoder decoder;
+    private volatile AsyncFTPHandler ftpHandler;
+    private final TransferScheduler scheduler;
+    private volatile Account account;
+    private int nextStreamID;
+    // the main connection of the session this data connection belongs to, if it is one
+    private volatile Connection session;
+    // the data connections of this session, see joinSession
+    private final List<Connection> lanes;
+    
+    Connection(NetworkHandler net, NetSocket socket) {
+        this.socket = socket;
+        this.context = Vertx.currentContext() != null ? Vertx.currentContext() : Utils.VERTX.getOrCreateContext();
+        this.drainListeners = new ArrayDeque<>();
+        this.senders = new IntObjectHashMap<>();
+        this.decoder = new FrameDecoder(net, this);
+        this.ftpHandler = new AsyncFTPHandler(net, this);
+        this.scheduler = new TransferScheduler(this);
+        this.account = null;
+        // clients hand out odd stream ids and servers even ones, so ids never collide between the two directions
+        this.nextStreamID = InstanceHandler.side() == Side.CLIENT ? 1 : 2;
+        this.session = null;
+        this.lanes = new CopyOnWriteArrayList<>();
+    }
+    
+    public NetSocket getSocket() {
+        return socket;
+    }
+    
+    // the context the socket's handlers are called on
+    public Context getContext() {
+        return context;
+    }
+    
+    // Only one drain handler can be set on a socket, so everything waiting for room in the write queue is queued up
+    // here instead. Must be called from the socket's context.
+    public void whenWritable(Runnable listener) {
+        drainListeners.add(listener);
+        socket.drainHandler(unused -> {
+            socket.drainHandler(null);
+            Runnable next;
+            while((next = drainListeners.poll()) != null)
+                next.run();
+        });
+    }
+    
+    // Must be called from the socket's context
+    public int nextStreamID() {
+        int id = nextStreamID;
+        nextStreamID += 2;
+        return id;
+    }
+    
+    // Outgoing streams, so credits granted by the receiver reach their sender. Must be called from the socket's
+    // context.
+    public void registerSender(FileStreamSender sender) {
+        senders.put(sender.getStreamID(), sender);
+    }
+    
+    // queues the sender up for its next turn on the socket, see TransferScheduler
+    public void scheduleSender(FileStreamSender sender) {
+        scheduler.schedule(sender);
+    }
+    
+    public void removeSender(FileStreamSender sender) {
+        scheduler.remove(sender);
+        if(senders.get(sender.getStreamID()) == sender)
+            senders.remove(sender.getStreamID());
+    }
+    
+    void handleStreamCredit(FileStreamCreditPacket fscp) {
+        FileStreamSender sender = senders.get(fscp.getStreamID());
+        if(sender != null)
+            sender.grantCredits(fscp.getCredits());
+    }
+    
+    // the receiver already has part of one of our streams, which like a termination has to reach its stripes too
+    void handleStreamResume(FileStreamResumePacket fsrp) {
+        FileStreamSender sender = senders.get(fsrp.getStreamID());
+        if(sender != null)
+            sender.resume(fsrp.getSections());
+        lanes.forEach(lane -> lane.getContext().runOnContext(unused -> lane.handleStreamResume(fsrp)));
+    }
+    
+    // the receiver gave up on one of our streams
+    void handleStreamTermination(TerminateFileStreamPacket tfsp) {
+        FileStreamSender sender = senders.get(tfsp.getStreamID());
+        if(sender != null)
+            sender.abort();
+        // the stripes of a striped stream are sent over the data connections, but the receiver only knows about the
+        // main one
+        lanes.forEach(lane -> lane.getContext().runOnContext(unused -> lane.handleStreamTermination(tfsp)));
+    }
+    
+    // Makes this connection an extra data connection of another, already authenticated one. Data connections share
+    // the main connection's account and incoming streams, so the fragments of one stream can arrive over any of them.
+    public void joinSession(Connection main) {
+        session = main;
+        account = main.account;
+        ftpHandler = main.ftpHandler;
+        main.lanes.add(this);
+    }
+    
+    public List<Connection> getLanes() {
+        return lanes;
+    }
+    
+    public void authenticate(Account account) {
+        this.account = account;
+    }
+    
+    public boolean isAuthenticated() {
+        return account != null;
+    }
+    
+    // The account as it is now, null if it has been removed since. Removing an account renumbers those after it, which
+    // wraps them again (see AccountDirectory), so the one the connection logged in with is only used to look it up.
+    public Account getAccount() {
+        Account account = this.account;
+        if(account == null || InstanceHandler.server == null)
+            return account;
+        Account current = InstanceHandler.server.getAccount(account.username);
+        return current != null && current.incarnation == account.incarnation ? current : null;
+    }
+    
+    FrameDecoder getDecoder() {
+        return decoder;
+    }
+    
+    AsyncFTPHandler getFTPHandler() {
+        return ftpHandler;
+    }
+    
+    void destructor() {
+        drainListeners.clear();
+        scheduler.clear();
+        // copied since aborting a sender removes it
+        new ArrayList<>(senders.values()).forEach(FileStreamSender::abort);
+        senders.clear();
+        if(session == null) {
+            ftpHandler.forceClear();
+            lanes.forEach(lane -> lane.socket.close());
+        }else
+            session.lanes.remove(this);
+        decoder.destructor();
+    }
+}
@@ -0,0 +1,47 @@
+package fs.network;
+
+import fs.common.Utils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import java.util.List;
+
+// Frames are cut out of the accumulated socket reads as slices, so every byte is only looked at once no matter
+// how many reads a packet is split across
+final class FrameDecoder {
+    private final NetworkHandler net;
+    private final Connection connection;
+    private final CompositeByteBuf accumulator;
+    
+    public FrameDecoder(NetworkHandler net, Connection connection) {
+        this.net = net;
+        this.connection = connection;
+        this.accumulator = Unpooled.compositeBuffer(Integer.MAX_VALUE); // never consolidate (that would copy)
+    }
+    
+    public void digest(Buffer buf) {
+        accumulator.addComponent(true, buf.getByteBuf());
+        while(accumulator.readableBytes() >= NetworkHandler.HEADER_LENGTH) {
+            int index = accumulator.readerIndex();
+            int len = accumulator.getInt(index + 1);
+            if(len < 0) {
+                Utils.log("Received a malformed packet header.");
+                connection.getSocket().close();
+                return;
+            }
+            if(accumulator.readableBytes() - NetworkHandler.HEADER_LENGTH < len)
+                break;
+            accumulator.skipBytes(NetworkHandler.HEADER_LENGTH + len);
+            // The decomposed slices reference the received buffers directly rather than the accumulator, so they
+            // remain valid once the read components are discarded
+            List<ByteBuf> slices = accumulator.decompose(index, NetworkHandler.HEADER_LENGTH + len);
+            net.handlePacket(Buffer.buffer(Unpooled.wrappedBuffer(slices.toArray(new ByteBuf[slices.size()]))), connection);
+        }
+        accumulator.discardReadComponents();
+    }
+    
+    public void destructor() {
+        accumulator.release();
+    }
+}
@@ -1,321 +1,346 @@
 package fs.network;
 
+import fs.common.FileBundle;
 import fs.common.InstanceHandler;
 import fs.common.Utils;
-import fs.network.ftp.AsyncFileStream;
 import fs.network.ftp.FTPPacket;
-import fs.network.ftp.AsyncFileFragmentAggregator;
 import fs.network.ftp.FileFragmentPacket;
 import fs.network.ftp.FileStreamClosePacket;
+import fs.network.ftp.FileStreamCreditPacket;
+import fs.network.ftp.FileStreamResumePacket;
+import fs.network.ftp.FileStreamSender;
 import fs.network.ftp.FileStreamStartPacket;
+import fs.network.ftp.StripedFileSender;
 import fs.network.ftp.TerminateFileStreamPacket;
 import fs.network.packet.AccountIDAssignmentPacket;
+import fs.network.packet.DataChannelPacket;
+import fs.network.packet.DirectPacket;
 import fs.network.packet.DownloadRequestPacket;
 import fs.network.packet.FilesListRequestPacket;
 import fs.network.packet.InfoLogPacket;
 import fs.network.packet.LoginRequestPacket;
 import fs.network.packet.Packet;
 import fs.network.packet.PacketHandler;
+import fs.network.packet.RangeDownloadRequestPacket;
+import fs.network.packet.SessionTokenPacket;
+import fs.network.packet.SignaturePacket;
+import fs.network.packet.SignatureRequestPacket;
 import fs.network.packet.VsfRequestPacket;
+import fs.server.FileCache;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.net.NetSocket;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiPredicate;
+import java.util.function.Supplier;
 import stg.generic.ByteBuffer;
-import stg.generic.ByteHelper;
 import stg.nbt.NbtTagCompound;
-import stg.reflect.ReflectionHelper;
 
 public final class NetworkHandler {
-    private final List<PacketData> packetRegistry;
-    private final AsyncFTPHandler ftpHandler;
-    private final BufferParser bufferParser;
+    private final List<PacketData<?>> packetRegistry;
+    // Lookup tables compiled from the registry: by descriminator for incoming packets, and by class (then by
+    // destination side) for outgoing ones
+    private PacketData<?>[] inboundTable;
+    private Map<Class<? extends Packet>, PacketData<?>[]> outboundTable;
+    private final Map<NetSocket, Connection> connections;
     private byte descriminator;
-    private BiPredicate<NetSocket, Packet> packetValidator;
+    private BiPredicate<Connection, Packet> packetValidator;
     public static final long MAX_FTP_PACKET_SIZE = 65250L;
+    // Fragments sent with sendfile are larger, since each one costs a file open and a round trip to the event loop
+    public static final int MAX_FILE_REGION_SIZE = 1 << 20;
+    // files at least this large are striped across a session's data connections, if it has any
+    public static final long MIN_STRIPED_FILE_SIZE = 64L << 20;
+    // descriminator (1 byte) + body length (4 bytes)
+    static final int HEADER_LENGTH = 5;
     
     private void init() {
         // File transfer protocol stuff
-        registerFTPP(FileStreamStartPacket.class, null, null);
-        registerFTPP(FileFragmentPacket.class, null, null);
-        registerFTPP(FileStreamClosePacket.class, new FileStreamClosePacket.ClientHandler(), Side.CLIENT);
-        registerFTPP(FileStreamClosePacket.class, new FileStreamClosePacket.ServerHandler(), Side.SERVER);
-        registerFTPP(TerminateFileStreamPacket.class, new TerminateFileStreamPacket.Handler(), Side.CLIENT);
-        registerFTPP(TerminateFileStreamPacket.class, new TerminateFileStreamPacket.Handler(), Side.SERVER);
+        registerFTPP(FileStreamStartPacket.class, FileStreamStartPacket::new, null, null);
+        registerFTPP(FileFragmentPacket.class, FileFragmentPacket::new, null, null);
+        registerFTPP(FileStreamClosePacket.class, FileStreamClosePacket::new, new FileStreamClosePacket.ClientHandler(), Side.CLIENT);
+        registerFTPP(FileStreamClosePacket.class, FileStreamClosePacket::new, new FileStreamClosePacket.ServerHandler(), Side.SERVER);
+        registerFTPP(TerminateFileStreamPacket.class, TerminateFileStreamPacket::new, null, null);
+        registerFTPP(FileStreamCreditPacket.class, FileStreamCreditPacket::new, null, null);
+        registerFTPP(FileStreamResumePacket.class, FileStreamResumePacket::new, null, null);
         
         // Other packets
-        registerBidirectional(InfoLogPacket.class, new InfoLogPacket.Handler(), null);
-        register(LoginRequestPacket.class, new LoginRequestPacket.Handler(), Side.SERVER);
-        register(AccountIDAssignmentPacket.class, new AccountIDAssignmentPacket.Handler(), Side.CLIENT);
-        register(DownloadRequestPacket.class, new DownloadRequestPacket.Handler(), Side.SERVER);
-        register(FilesListRequestPacket.class, new FilesListRequestPacket.Handler(), Side.SERVER);
-        register(VsfRequestPacket.class, new VsfRequestPacket.Handler(), Side.SERVER);
+        registerBidirectional(InfoLogPacket.class, InfoLogPacket::new, new InfoLogPacket.Handler(), null);
+        register(LoginRequestPacket.class, LoginRequestPacket::new, new LoginRequestPacket.Handler(), Side.SERVER);
+        register(AccountIDAssignmentPacket.class, AccountIDAssignmentPacket::new, new AccountIDAssignmentPacket.Handler(), Side.CLIENT);
+        register(DownloadRequestPacket.class, DownloadRequestPacket::new, new DownloadRequestPacket.Handler(), Side.SERVER);
+        register(FilesListRequestPacket.class, FilesListRequestPacket::new, new FilesListRequestPacket.Handler(), Side.SERVER);
+        register(VsfRequestPacket.class, VsfRequestPacket::new, new VsfRequestPacket.Handler(), Side.SERVER);
+        register(SessionTokenPacket.class, SessionTokenPacket::new, new SessionTokenPacket.Handler(), Side.CLIENT);
+        register(DataChannelPacket.class, DataChannelPacket::new, new DataChannelPacket.Handler(), Side.SERVER);
+        register(RangeDownloadRequestPacket.class, RangeDownloadRequestPacket::new, new RangeDownloadRequestPacket.Handler(), Side.SERVER);
+        register(SignatureRequestPacket.class, SignatureRequestPacket::new, new SignatureRequestPacket.Handler(), Side.SERVER);
+        register(SignaturePacket.class, SignaturePacket::new, new SignaturePacket.Handler(), Side.CLIENT);
     }
     
     public NetworkHandler() {
-        this.packetRegistry = new LinkedList<>();
-        this.ftpHandler = new AsyncFTPHandler(this);
-        this.bufferParser = new BufferParser(this);
+        this.packetRegistry = new ArrayList<>();
+        this.connections = new ConcurrentHashMap<>();
         this.descriminator = 0;
         init();
     }
     
-    public <P extends Packet> void register(Class<P> packetClass, PacketHandler<P> handler, Side recievingSide) {
-        packetRegistry.add(new PacketData<>(packetClass, descriminator++, handler, recievingSide));
+    public <P extends Packet> void register(Class<P> packetClass, Supplier<P> factory, PacketHandler<P> handler, Side recievingSide) {
+        packetRegistry.add(new PacketData<>(packetClass, factory, descriminator++, handler, recievingSide));
+        compileTables();
     }
     
-    public <P extends Packet> void registerBidirectional(Class<P> packetClass, PacketHandler<P> clientHandler,
+    public <P extends Packet> void registerBidirectional(Class<P> packetClass, Supplier<P> factory, PacketHandler<P> clientHandler,
             PacketHandler<P> serverHandler) {
-        register(packetClass, clientHandler, Side.CLIENT);
-        register(packetClass, serverHandler == null ? clientHandler : serverHandler, Side.SERVER);
+        register(packetClass, factory, clientHandler, Side.CLIENT);
+        register(packetClass, factory, serverHandler == null ? clientHandler : serverHandler, Side.SERVER);
     }
     
-    private <P extends Packet> void registerFTPP(Class<P> packetClass, PacketHandler<P> handler, Side recievingSide) {
-        packetRegistry.add(new PacketData<>(packetClass, descriminator++, handler, recievingSide, true));
+    private <P extends Packet> void registerFTPP(Class<P> packetClass, Supplier<P> factory, PacketHandler<P> handler, Side recievingSide) {
+        packetRegistry.add(new PacketData<>(packetClass, factory, descriminator++, handler, recievingSide, true));
+        compileTables();
     }
     
-    private PacketData getPacketData(Packet packet, Side dest) {
-        for(PacketData pd : packetRegistry) {
-            if(packet.getClass().equals(pd.packetClass) && (pd.handler == null || pd.side == dest))
-                return pd;
+    // Rebuilt on every registration; registration only happens while the handler is being set up
+    private void compileTables() {
+        PacketData<?>[] inbound = packetRegistry.toArray(new PacketData<?>[packetRegistry.size()]);
+        Map<Class<? extends Packet>, PacketData<?>[]> outbound = new IdentityHashMap<>();
+        for(PacketData<?> pd : packetRegistry) {
+            PacketData<?>[] bySide = outbound.computeIfAbsent(pd.packetClass, unused -> new PacketData<?>[Side.VALUES.length]);
+            for(Side side : Side.VALUES) {
+                // the first registration which can be sent to that side wins
+                if(bySide[side.ordinal()] == null && (pd.handler == null || pd.side == side))
+                    bySide[side.ordinal()] = pd;
+            }
         }
-        return null;
+        inboundTable = inbound;
+        outboundTable = outbound;
+    }
+    
+    PacketData<?> getPacketData(Packet packet, Side dest) {
+        PacketData<?>[] bySide = outboundTable.get(packet.getClass());
+        return bySide == null ? null : bySide[dest.ordinal()];
     }
     
-    public void packetValidationHandler(BiPredicate<NetSocket, Packet> validator) {
+    public void packetValidationHandler(BiPredicate<Connection, Packet> validator) {
         packetValidator = validator;
     }
     
-    public void bindNetworkHandlers(NetSocket socket) {
-        socket.handler(buf -> {
-            ByteBuffer buffer = new ByteBuffer(buf.getBytes());
-            bufferParser.digest(buffer, socket);
-        });
+    public Connection bindNetworkHandlers(NetSocket socket, Handler<Void> closeHandler) {
+        Connection connection = new Connection(this, socket);
+        connections.put(socket, connection);
+        socket.handler(buf -> connection.getDecoder().digest(buf));
         
         socket.exceptionHandler(throwable -> Utils.logError(throwable));
+        socket.closeHandler(unused -> {
+            connections.remove(socket);
+            connection.destructor();
+            if(closeHandler != null)
+                closeHandler.handle(null);
+        });
+        return connection;
+    }
+    
+    public Connection getConnection(NetSocket socket) {
+        return connections.get(socket);
     }
     
-    private void handlePacket(ByteBuffer buffer, NetSocket socket) {
-        int index = buffer.get(0);
-        if(index < 0 || index >= packetRegistry.size())
+    void handlePacket(Buffer frame, Connection connection) {
+        NetSocket socket = connection.getSocket();
+        int index = frame.getByte(0);
+        PacketData<?>[] inbound = inboundTable;
+        if(index < 0 || index >= inbound.length)
             return; // most likely an internal error
-        PacketData<Packet> pd = packetRegistry.get(index);
+        PacketData<?> pd = inbound[index];
         if(pd == null)
             return; // most likely an internal error (again)
-        Packet packet = (Packet)ReflectionHelper.instantiate(pd.packetClass);
-        packet.deserialize(buffer.subBuffer(5, buffer.size() - 5)); // skip over the len
-        if(packetValidator != null && !packetValidator.test(socket, packet)) {
+        Packet packet = pd.factory.get();
+        if(packet instanceof DirectPacket)
+            ((DirectPacket)packet).deserialize(frame.slice(HEADER_LENGTH, frame.length())); // skip over the len
+        else
+            packet.deserialize(new ByteBuffer(frame.getBytes(HEADER_LENGTH, frame.length())));
+        if(packetValidator != null && !packetValidator.test(connection, packet)) {
             Utils.log("A client sent an invalid packet.");
             socket.close();
             return;
         }
         if(pd.isFTPP) {
-            handleFTPP(packet, socket);
+            handleFTPP(packet, connection);
             return;
         }
-        Packet response = pd.handler.onMessage(packet, socket);
+        Packet response = pd.handle(packet, socket);
         if(response != null)
             sendPacket(response, socket);
     }
     
-    private void handleFTPP(Packet ftpp, NetSocket socket) {
-        ((FTPPacket)ftpp).attachSocket(socket);
+    private void handleFTPP(Packet ftpp, Connection connection) {
+        AsyncFTPHandler ftpHandler = connection.getFTPHandler();
+        ((FTPPacket)ftpp).attachSocket(connection.getSocket());
         if(ftpp instanceof FileFragmentPacket)
             ftpHandler.handleFileFragment((FileFragmentPacket)ftpp);
         else if(ftpp instanceof FileStreamClosePacket)
             ftpHandler.handleFileStreamClose((FileStreamClosePacket)ftpp);
         else if(ftpp instanceof FileStreamStartPacket)
             ftpHandler.handleFileStreamStart((FileStreamStartPacket)ftpp);
-        else if(ftpp instanceof TerminateFileStreamPacket)
+        else if(ftpp instanceof TerminateFileStreamPacket) {
             ftpHandler.handleStreamTermination((TerminateFileStreamPacket)ftpp);
+            connection.handleStreamTermination((TerminateFileStreamPacket)ftpp);
+        }
+        else if(ftpp instanceof FileStreamCreditPacket)
+            connection.handleStreamCredit((FileStreamCreditPacket)ftpp);
+        else if(ftpp instanceof FileStreamResumePacket)
+            connection.handleStreamResume((FileStreamResumePacket)ftpp);
     }
     
+    // The frame is allocated once, the header is reserved up front and the length is patched in after the body has
+    // been written, so the same buffer goes to the socket without further copies. Vert.x 3.4 wraps any ByteBuf given
+    // to Buffer.buffer as unreleasable, so frames can't come from Netty's pooled allocator without leaking it.
     public void sendPacket(Packet packet, NetSocket socket) {
-        ByteBuffer buffer = new ByteBuffer();
-        buffer.append(getPacketData(packet, InstanceHandler.side().opposite()).descriminator);
-        ByteBuffer tempBuff = new ByteBuffer();
-        packet.serialize(tempBuff);
-        ByteHelper.writeInt(tempBuff.size(), buffer);
-        buffer.appendAll(tempBuff.toArray());
-        socket.write(Buffer.buffer(buffer.toArray()));
+        byte descriminator = getPacketData(packet, InstanceHandler.side().opposite()).descriminator;
+        Buffer frame;
+        if(packet instanceof DirectPacket) {
+            DirectPacket dp = (DirectPacket)packet;
+            frame = Buffer.buffer(HEADER_LENGTH + dp.getSerializedSize());
+            frame.appendByte(descriminator).appendInt(0);
+            dp.serialize(frame);
+        }else{
+            ByteBuffer tempBuff = new ByteBuffer();
+            packet.serialize(tempBuff);
+            byte[] body = tempBuff.toArray();
+            frame = Buffer.buffer(HEADER_LENGTH + body.length);
+            frame.appendByte(descriminator).appendInt(0);
+            frame.appendBytes(body);
+        }
+        frame.setInt(1, frame.length() - HEADER_LENGTH);
+        socket.write(frame);
+    }
+    
+    // Writes the frame and body header of the fragment, then has the kernel copy the payload straight from the file
+    // to the socket (sendfile). Falls back to chunked reads on connections which can't use file regions.
+    //
+    // The header promises the whole length up front. A file which no longer has it, having shrunk since the stream
+    // sized it, fails before anything is written. Once the header is out, a payload which fails part way leaves a short
+    // frame which the receiver can't find its way past, so the connection is closed.
+    public void sendFileRegion(FileFragmentPacket fragment, String file, long position, NetSocket socket,
+            Handler<AsyncResult<Void>> completionHandler) {
+        if(new File(file).length() < position + fragment.getLength()) {
+            completionHandler.handle(Future.failedFuture(new IOException(file + " was truncated while it was being sent.")));
+            return;
+        }
+        Buffer frame = Buffer.buffer(HEADER_LENGTH + FileFragmentPacket.HEADER_SIZE);
+        frame.appendByte(getPacketData(fragment, InstanceHandler.side().opposite()).descriminator);
+        frame.appendInt(fragment.getSerializedSize());
+        fragment.serializeHeader(frame);
+        socket.write(frame);
+        socket.sendFile(file, position, fragment.getLength(), result -> {
+            if(result.failed())
+                socket.close();
+            completionHandler.handle(result);
+        });
     }
     
     public void sendFile(String file, NetSocket socket, NbtTagCompound streamData) {
+        sendFile(file, socket, streamData, null);
+    }
+    
+    public void sendFile(String file, NetSocket socket, NbtTagCompound streamData, Handler<AsyncResult<Void>> completionHandler) {
         File f = new File(file);
         if(!f.exists())
             throw new IllegalArgumentException("The file specified does not exist: " + f.toString());
-        int numFragments = (int)(f.length() / MAX_FTP_PACKET_SIZE);
-        long fs = f.length();
-        numFragments += f.length() % MAX_FTP_PACKET_SIZE != 0 || numFragments == 0 ? 1 : 0;
-        sendPacket(new FileStreamStartPacket(file, f.getName(), numFragments, f.length(), streamData == null ? new NbtTagCompound() : streamData), socket);
-        
-        try {
-            FileInputStream ifstream = new FileInputStream(f);
-            byte[] buffer = new byte[(int)MAX_FTP_PACKET_SIZE];
-            for(int i = 0;i < numFragments;++ i) {
-                int len = fs < MAX_FTP_PACKET_SIZE ? (int)fs : (int)MAX_FTP_PACKET_SIZE;
-                fs -= len;
-                ifstream.read(buffer, 0, len);
-                sendPacket(new FileFragmentPacket(f.getName(), i, len, new ByteBuffer(buffer, 0, len)), socket);
-            }
-            ifstream.close();
-        }catch(IOException ex) {
-            Utils.logError(ex);
-            sendPacket(new TerminateFileStreamPacket(file), socket);
-        }
-        
-        sendPacket(new FileStreamClosePacket(f.getName()), socket);
+        (new FileStreamSender(file, getConnection(socket), (int)MAX_FTP_PACKET_SIZE, false, streamData, completionHandler)).start();
+    }
+    
+    public void sendFileZeroCopy(String file, NetSocket socket, NbtTagCompound streamData) {
+        File f = new File(file);
+        if(!f.exists())
+            throw new IllegalArgumentException("The file specified does not exist: " + f.toString());
+        (new FileStreamSender(file, getConnection(socket), MAX_FILE_REGION_SIZE, true, streamData, null)).start();
     }
     
     public void sendFileAsync(String file, NetSocket socket, int packetSize, NbtTagCompound streamData) {
-        (new AsyncFileStream(file, socket, Utils.constrain(packetSize, 1024, (int)MAX_FTP_PACKET_SIZE), streamData)).start();
+        sendFileAsync(file, socket, packetSize, streamData, null);
     }
     
-    public void destructor() {
-        ftpHandler.forceClear();
+    public void sendFileAsync(String file, NetSocket socket, int packetSize, NbtTagCompound streamData, Handler<AsyncResult<Void>> completionHandler) {
+        (new FileStreamSender(file, getConnection(socket), Utils.constrain(packetSize, 1024, (int)MAX_FTP_PACKET_SIZE), false, streamData, completionHandler)).start();
     }
     
-    private static final class BufferParser {
-        private final NetworkHandler net;
-        ByteBuffer buffer;
-        
-        public BufferParser(NetworkHandler net) {
-            this.net = net;
-            this.buffer = new ByteBuffer();
-        }
-        
-        public void digest(ByteBuffer buf, NetSocket socket) {
-            buffer.appendAll(buf.toArray());
-            int index = 0;
-            while(index < buffer.size() - 4) {
-                ++ index;
-                int len = ByteHelper.readInt(index, buffer);
-                index += 4;
-                if(index + len > buffer.size()) {
-                    buffer = buffer.subBuffer(index - 5, buffer.size() - (index - 5));
-                    return;
-                }
-                net.handlePacket(buffer.subBuffer(index - 5, len + 5), socket);
-                index += len;
-            }
-            buffer = buffer.subBuffer(index, buffer.size() - index);
-        }
+    // Streams the (offset, length) pairs of the file back to back as a file called `name`
+    public void sendFileRange(String file, String name, long[] segments, NetSocket socket, NbtTagCompound streamData) {
+        (new FileStreamSender(file, name, segments, getConnection(socket), (int)MAX_FTP_PACKET_SIZE, streamData, null)).start();
     }
     
-    // Note: the AsyncFileFragmentAggregator is not prefixed by "Async" for a reason
-    private static final class AsyncFTPHandler {
-        private final NetworkHandler net;
-        final List<FileFragmentPacket> fragmentQueue;
-        final List<FileStreamClosePacket> streamCloseQueue;
-        final List<AsyncFileFragmentAggregator> aggregators;
-        
-        public AsyncFTPHandler(NetworkHandler net) {
-            this.net = net;
-            this.fragmentQueue = new ArrayList<>();
-            this.streamCloseQueue = new ArrayList<>();
-            this.aggregators = new ArrayList<>();
-        }
-        
-        public void handleFileStreamStart(FileStreamStartPacket fssp) {
-            AsyncFileFragmentAggregator ffa = new AsyncFileFragmentAggregator(fssp);
-            aggregators.add(ffa);
-            if(!fragmentQueue.isEmpty()) tryFlushFragmentQueue(ffa);
-            if(!streamCloseQueue.isEmpty()) tryAggregatorClose(ffa);
-        }
-        
-        public void handleFileFragment(FileFragmentPacket ffp) {
-            Iterator<AsyncFileFragmentAggregator> itr = aggregators.iterator();
-            while(itr.hasNext()) {
-                AsyncFileFragmentAggregator ffa = itr.next();
-                if(ffa.acceptFragment(ffp)) {
-                    if(!streamCloseQueue.isEmpty() && tryAggregatorClose(ffa))
-                        itr.remove();
-                    return;
-                }
-            }
-            fragmentQueue.add(ffp);
-        }
-        
-        public void handleFileStreamClose(FileStreamClosePacket fscp) {
-            Iterator<AsyncFileFragmentAggregator> itr = aggregators.iterator();
-            while(itr.hasNext()) {
-                AsyncFileFragmentAggregator ffa = itr.next();
-                if(!fragmentQueue.isEmpty()) tryFlushFragmentQueue(ffa);
-                if(ffa.finish(fscp)) {
-                    itr.remove();
-                    Packet response = net.getPacketData(fscp, InstanceHandler.side()).handler.onMessage(fscp, fscp.getSocket());
-                    if(response != null)
-                        net.sendPacket(response, fscp.getSocket());
-                    return;
-                }
-            }
-            streamCloseQueue.add(fscp);
-        }
-        
-        public void handleStreamTermination(TerminateFileStreamPacket tfsp) {
-            fragmentQueue.removeIf(ffp -> tfsp.getName().equals(ffp.getName()));
-            streamCloseQueue.removeIf(fscp -> tfsp.getName().equals(fscp.getName()));
-            aggregators.removeIf(ffa -> ffa.getName().equals(tfsp.getName()));
-            System.gc();
-        }
-        
-        private void tryFlushFragmentQueue(AsyncFileFragmentAggregator ffa) {
-            Iterator<FileFragmentPacket> itr = fragmentQueue.iterator();
-            while(itr.hasNext()) {
-                if(ffa.acceptFragment(itr.next()))
-                    itr.remove();
-            }
-        }
-        
-        private boolean tryAggregatorClose(AsyncFileFragmentAggregator ffa) {
-            Iterator<FileStreamClosePacket> itr = streamCloseQueue.iterator();
-            while(itr.hasNext()) {
-                FileStreamClosePacket fscp = itr.next();
-                if(ffa.finish(fscp)) {
-                    itr.remove();
-                    Packet response = net.getPacketData(fscp, InstanceHandler.side()).handler.onMessage(fscp, fscp.getSocket());
-                    if(response != null)
-                        net.sendPacket(response, fscp.getSocket());
-                    return true;
-                }
+    // Streams the files of the bundle back to back as a file called `name`, see FileBundle
+    public void sendBundle(FileBundle bundle, String name, NetSocket socket, NbtTagCompound streamData, Handler<AsyncResult<Void>> completionHandler) {
+        (new FileStreamSender(bundle, name, getConnection(socket), (int)MAX_FTP_PACKET_SIZE, streamData, completionHandler)).start();
+    }
+    
+    // Streams a file held by the server's FileCache, loading it into the cache first if it isn't
+    public void sendFileCached(String file, FileCache cache, NetSocket socket, NbtTagCompound streamData) {
+        cache.get(new File(file), (int)MAX_FTP_PACKET_SIZE, result -> {
+            if(result.failed()) {
+                Utils.logError(result.cause());
+                sendPacket(new InfoLogPacket("Failed to read " + new File(file).getName() + "."), socket);
+                return;
             }
-            return false;
-        }
-        
-        public void forceClear() {
-            aggregators.forEach(ffa -> {
-                tryFlushFragmentQueue(ffa);
-                tryAggregatorClose(ffa);
-            });
-            fragmentQueue.clear();
-            streamCloseQueue.clear();
-            aggregators.clear();
-        }
+            Connection connection = getConnection(socket);
+            // the socket may have closed while the file was being loaded
+            if(connection != null)
+                (new FileStreamSender(file, result.result(), connection, streamData, null)).start();
+        });
     }
     
-    private static final class PacketData<P extends Packet> {
+    // Falls back to a regular stream if the socket's session has no data connections
+    public void sendFileStriped(String file, NetSocket socket, boolean zeroCopy, NbtTagCompound streamData,
+            Handler<AsyncResult<Void>> completionHandler) {
+        File f = new File(file);
+        if(!f.exists())
+            throw new IllegalArgumentException("The file specified does not exist: " + f.toString());
+        Connection connection = getConnection(socket);
+        List<Connection> lanes = new ArrayList<>(connection.getLanes());
+        int fragmentSize = zeroCopy ? MAX_FILE_REGION_SIZE : (int)MAX_FTP_PACKET_SIZE;
+        if(lanes.isEmpty())
+            (new FileStreamSender(file, connection, fragmentSize, zeroCopy, streamData, completionHandler)).start();
+        else
+            (new StripedFileSender(file, connection, lanes, fragmentSize, zeroCopy, streamData, completionHandler)).start();
+    }
+    
+    public void destructor() {
+        connections.values().forEach(Connection::destructor);
+        connections.clear();
+    }
+    
+    static final class PacketData<P extends Packet> {
         final byte descriminator;
-        final Class<? extends Packet> packetClass;
+        final Class<P> packetClass;
+        final Supplier<P> factory;
         final PacketHandler<P> handler;
         final Side side;
         final boolean isFTPP;
         
-        public PacketData(Class<? extends Packet> packetClass, byte descriminator, PacketHandler<P> handler, Side recievingSide, boolean isFTPP) {
+        public PacketData(Class<P> packetClass, Supplier<P> factory, byte descriminator, PacketHandler<P> handler, Side recievingSide, boolean isFTPP) {
             this.packetClass = packetClass;
+            this.factory = factory;
             this.descriminator = descriminator;
             this.handler = handler;
             this.side = recievingSide;
             this.isFTPP = isFTPP;
         }
         
-        public PacketData(Class<? extends Packet> packetClass, byte descriminator, PacketHandler<P> handler, Side recievingSide) {
-            this(packetClass, descriminator, handler, recievingSide, false);
+        public PacketData(Class<P> packetClass, Supplier<P> factory, byte descriminator, PacketHandler<P> handler, Side recievingSide) {
+            this(packetClass, factory, descriminator, handler, recievingSide, false);
+        }
+        
+        // packets are made by the factory of the registration they're looked up by, so they're always of its class
+        Packet handle(Packet packet, NetSocket socket) {
+            return handler.onMessage(packetClass.cast(packet), socket);
         }
     }
 }
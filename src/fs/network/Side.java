@@ -3,6 +3,8 @@ package fs.network;
 public enum Side {
     SERVER, CLIENT;
     
+    public static final Side[] VALUES = values();
+    
     public Side opposite() {
         return this == SERVER ? CLIENT : SERVER;
     }
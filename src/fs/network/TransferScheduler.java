@@ -0,0 +1,70 @@
+package fs.network;
+
+import fs.network.ftp.FileStreamSender;
+import java.util.ArrayDeque;
+
+// Interleaves the fragments of every stream a connection is sending, one fragment per stream per turn. Only one
+// fragment is ever being read at a time, but fragments are handed to the socket as soon as they've been read, so they
+// queue up in its write queue until it's full (see NetSocket.writeQueueFull), and then nothing more is sent until it
+// has drained. Control packets, which are written straight to the socket, wait behind at most a full write queue of
+// fragments rather than behind whole files.
+final class TransferScheduler {
+    private final Connection connection;
+    private final ArrayDeque<FileStreamSender> ready;
+    private boolean sending;
+    private boolean pumping;
+    private boolean awaitingDrain;
+    
+    TransferScheduler(Connection connection) {
+        this.connection = connection;
+        this.ready = new ArrayDeque<>();
+        this.sending = false;
+        this.pumping = false;
+        this.awaitingDrain = false;
+    }
+    
+    // called whenever a sender may be able to send again, e.g. after being granted credits
+    void schedule(FileStreamSender sender) {
+        if(!ready.contains(sender))
+            ready.add(sender);
+        pump();
+    }
+    
+    void remove(FileStreamSender sender) {
+        ready.remove(sender);
+    }
+    
+    void clear() {
+        ready.clear();
+    }
+    
+    private void pump() {
+        // a fragment can complete synchronously, in which case the loop below simply carries on
+        if(pumping) return;
+        pumping = true;
+        try {
+            while(!sending && !awaitingDrain && !ready.isEmpty()) {
+                if(connection.getSocket().writeQueueFull()) {
+                    awaitingDrain = true;
+                    connection.whenWritable(() -> {
+                        awaitingDrain = false;
+                        pump();
+                    });
+                    return;
+                }
+                FileStreamSender sender = ready.poll();
+                // senders without enough credits drop out of the rotation until they are granted more
+                if(!sender.canSend()) continue;
+                sending = true;
+                sender.sendNextFragment(() -> {
+                    sending = false;
+                    if(sender.canSend())
+                        ready.add(sender);
+                    pump();
+                });
+            }
+        }finally {
+            pumping = false;
+        }
+    }
+}
@@ -1,55 +1,366 @@
 package fs.network.ftp;
 
+import fs.common.InstanceHandler;
+import fs.common.Security;
+import fs.common.Utils;
+import fs.network.NetworkHandler;
+import fs.network.Side;
+import fs.server.Account;
+import fs.server.ChunkStore;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetSocket;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
 import stg.nbt.NbtTagCompound;
 
+// Every fragment is written straight to its offset in a single staging file, which was sized up front, so committing the
+// stream is just a rename. On the server staging files live under dataDir rather than next to the stored files, where
+// they would be listed and could be downloaded by anyone before the upload finished. Streams whose sender
+// fingerprinted the source are resumable: their staging file is kept when the stream is interrupted, along with a
+// checkpoint of the fragments which made it to disk, so the stream can pick up where it left off. It's named after the
+// account sending it, its target and the fingerprint together, so two uploads of the same source never share one and
+// presenting someone else's fingerprint doesn't resume their upload. What's left behind is swept up on startup once
+// it has gone untouched for STAGING_EXPIRY.
 public final class AsyncFileFragmentAggregator {
+    // bytes of fragment data the sender may have in flight
+    public static final int INITIAL_WINDOW = 8 << 20;
+    private static final int CHECKPOINT_MAGIC = 0x46534350;
+    // fragments written between checkpoints
+    private static final int CHECKPOINT_INTERVAL = 64;
+    private static final long STAGING_EXPIRY = 7L * 24 * 60 * 60 * 1000;
+    private final int streamID;
     private final String name;
     private final String file;
     private final NbtTagCompound streamData;
     private final int numFragments;
+    private final int fragmentSize;
+    private final long fileSize;
+    private final String fingerprint;
+    private final File stagingFile;
+    private final File checkpointFile;
+    private final FileChannel staging;
+    // sections being or already written, and those which are on disk
+    private final BitSet received;
+    private final BitSet written;
     private int numFragmentsCounted;
-    private final List<DataNode> data;
+    private int uncheckpointed;
+    private final int stripes;
+    // credits consumed but not yet given back, per socket the fragments came in on
+    private final Map<NetSocket, int[]> consumedCredits;
+    // chunks of an upload the server already has, see ChunkStore
+    private final BitSet prefilledChunks;
+    // the fragments verified in this attempt, see StreamDigest
+    private final StreamDigest digest;
+    private boolean corrupted;
+    private boolean failed;
     private boolean finished;
     
-    public AsyncFileFragmentAggregator(FileStreamStartPacket fssp) {
+    public AsyncFileFragmentAggregator(FileStreamStartPacket fssp) throws IOException {
+        this.streamID = fssp.getStreamID();
         this.name = fssp.getName();
         this.file = fssp.getFile();
         this.streamData = fssp.getStreamData();
         this.numFragments = fssp.getFragmentCount();
-        this.data = new ArrayList<>();
+        this.fragmentSize = fssp.getFragmentSize();
+        this.fileSize = fssp.getFileSize();
+        // every write to the staging file is placed by the layout the sender declared, so it has to add up
+        if(fragmentSize <= 0 || fragmentSize > NetworkHandler.MAX_FILE_REGION_SIZE || fileSize < 0L
+                || fileSize / fragmentSize >= Integer.MAX_VALUE || numFragments != FileStreamSender.fragmentCount(fileSize, fragmentSize))
+            throw new IOException("The layout of the stream " + name + " doesn't add up.");
+        // a fingerprint which isn't one of ours (a hex SHA-256) just makes the stream unresumable
+        String fingerprint = streamData.containsKey("fingerprint") ? streamData.getString("fingerprint") : null;
+        this.fingerprint = fingerprint != null && fingerprint.matches("[0-9a-f]{64}") ? fingerprint : null;
+        this.written = new BitSet(numFragments);
+        // the target as FileStreamClosePacket stores it, and the account the stream came in on
+        File target;
+        String account;
+        if(InstanceHandler.side() == Side.SERVER) {
+            target = new File(Utils.combinePathElements(InstanceHandler.config.getString("fileStorageDir"),
+                    streamData.containsKey("fileOut") ? streamData.getString("fileOut") : name));
+            Account sender = InstanceHandler.NETWORK_HANDLER.getConnection(fssp.getSocket()).getAccount();
+            account = sender == null ? null : sender.username;
+        }else{
+            target = new File(Utils.combinePathElements(InstanceHandler.config.getString("downloadsDir"), name));
+            account = "";
+        }
+        String prefix = "." + shorten(name.replaceAll("\\W", "_"));
+        if(this.fingerprint == null || account == null) {
+            this.stagingFile = Files.createTempFile(stagingDirectory().toPath(), prefix, ".part").toFile();
+            this.stagingFile.deleteOnExit();
+            this.checkpointFile = null;
+        }else{
+            String base = prefix + "." + stagingKey(account, target, this.fingerprint);
+            this.stagingFile = new File(stagingDirectory(), base + ".part");
+            this.checkpointFile = new File(stagingDirectory(), base + ".ckpt");
+            if(!loadCheckpoint())
+                this.checkpointFile.delete();
+        }
+        RandomAccessFile raf = new RandomAccessFile(stagingFile, "rw");
+        raf.setLength(fileSize);
+        this.staging = raf.getChannel();
+        this.received = (BitSet)written.clone();
+        this.numFragmentsCounted = written.cardinality();
+        this.uncheckpointed = 0;
+        this.prefilledChunks = new BitSet();
+        if(InstanceHandler.side() == Side.SERVER && streamData.containsKey("chunks"))
+            prefillChunks(InstanceHandler.server.getChunkStore(), streamData.getStringArray("chunks"),
+                    InstanceHandler.server.claimableChunks(target, account));
+        this.stripes = streamData.containsKey("stripes") ? streamData.getInteger("stripes") : 0;
+        this.consumedCredits = new IdentityHashMap<>();
+        this.digest = new StreamDigest(numFragments);
+        this.corrupted = false;
+        this.failed = false;
         this.finished = false;
     }
     
-    // write the data to a tmp file
+    // Stripes of the same stream are accepted concurrently, only claiming the section is synchronized. Returns false if
+    // the fragment was turned away, which for a corrupted one (see isCorrupted) means the stream has to be resumed.
+    //
+    // A section which was already received, from an earlier attempt or the chunk store, can still arrive: stripes start
+    // sending before they hear which sections to skip. The sender counts it in its digest, so it's verified and counted
+    // in this one as well, but isn't written again.
+    //
+    // A fragment which isn't exactly as long as its section is treated as corrupted, it would otherwise overwrite the
+    // next section or leave a hole in this one.
     public boolean acceptFragment(FileFragmentPacket ffp) {
-        if(finished) return false;
-        if(!name.equals(ffp.getName())) return false;
-        store(ffp);
-        ++ numFragmentsCounted;
+        int section = ffp.getSectionNumber();
+        boolean duplicate;
+        synchronized(this) {
+            if(finished) return false;
+            if(section < 0 || section >= numFragments)
+                return true; // a bogus section, swallow it
+            duplicate = received.get(section);
+            received.set(section);
+        }
+        if(duplicate && !ffp.isChecked())
+            return true;
+        Buffer data = null;
+        if(!ffp.isCompressed()) {
+            if(ffp.getLength() == sectionLength(section) && ffp.getData().length() == ffp.getLength())
+                data = ffp.getData();
+        }else{
+            try {
+                data = FragmentCompression.decompress(ffp.getData(), sectionLength(section));
+            }catch(DataFormatException ex) {
+                Utils.logError(ex);
+            }
+        }
+        if(data == null || (ffp.isChecked() && StreamDigest.crc(data) != ffp.getCRC())) {
+            synchronized(this) {
+                // handed back, so the attempt which resumes the stream sends it again
+                if(!duplicate)
+                    received.clear(section);
+                corrupted = true;
+            }
+            return false;
+        }
+        if(ffp.isChecked())
+            digest.record(section, ffp.getCRC());
+        if(duplicate)
+            return true;
+        try {
+            long position = (long)section * fragmentSize;
+            // a fragment which arrived over several reads is made up of several buffers
+            for(ByteBuffer buf : data.getByteBuf().nioBuffers()) {
+                while(buf.hasRemaining())
+                    position += staging.write(buf, position);
+            }
+        }catch(IOException ex) {
+            Utils.logError(ex);
+            synchronized(this) {
+                failed = true;
+            }
+        }
+        synchronized(this) {
+            written.set(section);
+            ++ numFragmentsCounted;
+            if(checkpointFile != null && ++ uncheckpointed >= CHECKPOINT_INTERVAL)
+                saveCheckpoint();
+        }
         return true;
     }
     
-    public boolean finish(FileStreamClosePacket fscp) {
+    // what the sender counted the fragment against its credits, which for a compressed one is its inflated length
+    public int creditedLength(FileFragmentPacket ffp) {
+        return ffp.isCompressed() ? sectionLength(ffp.getSectionNumber()) : ffp.getLength();
+    }
+    
+    private int sectionLength(int section) {
+        return (int)Math.max(0L, Math.min(fragmentSize, fileSize - (long)section * fragmentSize));
+    }
+    
+    // Counts the sections of chunks the server already has as received, without writing them, so that the sender
+    // skips them. They aren't checkpointed, the chunk store could have dropped them by the time the stream is resumed.
+    // Only the chunks the uploader can claim (see Server.claimableChunks) are skipped, the rest are sent and hashed.
+    private void prefillChunks(ChunkStore store, String[] hashes, Set<String> claimable) {
+        if(ChunkStore.CHUNK_SIZE % fragmentSize != 0 || hashes.length != ChunkStore.chunkCount(fileSize))
+            return;
+        int sectionsPerChunk = ChunkStore.CHUNK_SIZE / fragmentSize;
+        for(int i = 0;i < hashes.length;++ i) {
+            if(!claimable.contains(hashes[i]) || !store.contains(hashes[i])) continue;
+            prefilledChunks.set(i);
+            for(int section = i * sectionsPerChunk;section < Math.min((i + 1) * sectionsPerChunk, numFragments);++ section) {
+                if(received.get(section)) continue;
+                received.set(section);
+                ++ numFragmentsCounted;
+            }
+        }
+    }
+    
+    public BitSet getPrefilledChunks() {
+        return prefilledChunks;
+    }
+    
+    public File getStagingFile() {
+        return stagingFile;
+    }
+    
+    public boolean isResumable() {
+        return checkpointFile != null;
+    }
+    
+    // the sections already on disk from an earlier attempt or in the chunk store, which the sender can skip
+    public synchronized BitSet getReceivedSections() {
+        return (BitSet)received.clone();
+    }
+    
+    // Keeps what has been received so far for a later attempt to resume, or throws it away if the stream isn't
+    // resumable
+    public void suspend() {
+        if(checkpointFile == null) {
+            discard();
+            return;
+        }
+        synchronized(this) {
+            // late fragments from other stripes are turned away from here on
+            finished = true;
+            saveCheckpoint();
+        }
+        try {
+            staging.close();
+        }catch(IOException ex) {
+            Utils.logError(ex);
+        }
+    }
+    
+    private boolean loadCheckpoint() {
+        if(!checkpointFile.exists() || !stagingFile.exists() || stagingFile.length() != fileSize)
+            return false;
+        try(DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile))) {
+            if(in.readInt() != CHECKPOINT_MAGIC || !fingerprint.equals(in.readUTF()) || in.readLong() != fileSize
+                    || in.readInt() != numFragments || in.readInt() != fragmentSize)
+                return false;
+            long[] words = new long[in.readInt()];
+            for(int i = 0;i < words.length;++ i)
+                words[i] = in.readLong();
+            written.or(BitSet.valueOf(words));
+            return true;
+        }catch(IOException ex) {
+            return false;
+        }
+    }
+    
+    // Only sections which have been forced to disk make it into the checkpoint. Written to a temporary file first so
+    // a crash can't leave a torn checkpoint behind.
+    private void saveCheckpoint() {
+        uncheckpointed = 0;
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        try {
+            staging.force(false);
+            try(DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+                out.writeInt(CHECKPOINT_MAGIC);
+                out.writeUTF(fingerprint);
+                out.writeLong(fileSize);
+                out.writeInt(numFragments);
+                out.writeInt(fragmentSize);
+                long[] words = written.toLongArray();
+                out.writeInt(words.length);
+                for(long word : words)
+                    out.writeLong(word);
+            }
+            Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }catch(IOException ex) {
+            // the next checkpoint may well succeed, and without one the stream just restarts from scratch
+            Utils.logError(ex);
+        }
+    }
+    
+    // Credits are given back in batches of a quarter window rather than per fragment, to the socket which used them
+    // up. Returns the amount to grant, if any.
+    public synchronized int releaseCredits(NetSocket socket, int len) {
+        int[] consumed = consumedCredits.computeIfAbsent(socket, unused -> new int[1]);
+        consumed[0] += len;
+        int window = stripes == 0 ? INITIAL_WINDOW : stripeWindow(stripes, fragmentSize);
+        if(consumed[0] < window / 4)
+            return 0;
+        int credits = consumed[0];
+        consumed[0] = 0;
+        return credits;
+    }
+    
+    // The window each stripe of a striped stream starts out with, in place of an initial credit grant. Never less
+    // than a few fragments, or the stripes would stall waiting for each one to be acknowledged.
+    public static int stripeWindow(int stripes, int fragmentSize) {
+        return Math.max(INITIAL_WINDOW / stripes, 4 * fragmentSize);
+    }
+    
+    public synchronized boolean finish(FileStreamClosePacket fscp) {
         if(finished || numFragments != numFragmentsCounted) return false;
-        if(!name.equals(fscp.getName())) return false;
         finished = true;
-        clump();
+        try {
+            staging.close();
+        }catch(IOException ex) {
+            Utils.logError(ex);
+            failed = true;
+        }
         fscp.setCollector(this);
         return true;
     }
     
-    public boolean finished() {
+    // whether the close packet's digest matches the fragments verified in this attempt
+    public boolean verify(FileStreamClosePacket fscp) {
+        return MessageDigest.isEqual(digest.digest(), fscp.getDigest());
+    }
+    
+    public synchronized boolean isCorrupted() {
+        return corrupted;
+    }
+    
+    public synchronized boolean failed() {
+        return failed;
+    }
+    
+    public synchronized boolean finished() {
         return finished;
     }
     
+    public int getStreamID() {
+        return streamID;
+    }
+    
+    // the number of data connections the stream is striped across, 0 if it isn't striped
+    public int getStripes() {
+        return stripes;
+    }
+    
     public String getName() {
         return name;
     }
@@ -62,93 +373,73 @@ public final class AsyncFileFragmentAggregator {
         return streamData;
     }
     
-    public void writeToStream(OutputStream ostream) throws IOException {
-        FileInputStream ifstream = new FileInputStream(data.get(0).dumpFile);
-        byte[] buffer = new byte[65535];
-        int len;
-        while((len = ifstream.read(buffer)) > 0)
-            ostream.write(buffer, 0, len);
-        ifstream.close();
-        data.get(0).destructor();
+    // moves the staged data to its destination, replacing whatever was there
+    public void commit(File target) throws IOException {
+        boolean failed;
+        synchronized(this) {
+            failed = this.failed;
+        }
+        if(failed) {
+            discard();
+            throw new IOException("Failed to write " + name + " to the staging file.");
+        }
+        try {
+            Files.move(stagingFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }catch(AtomicMoveNotSupportedException ex) {
+            Files.move(stagingFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if(checkpointFile != null)
+            checkpointFile.delete();
     }
     
-    @Override
-    protected void finalize() throws Throwable {
-        super.finalize();
-        data.forEach(node -> node.destructor());
+    public void discard() {
+        try {
+            staging.close();
+        }catch(IOException ex) {
+            Utils.logError(ex);
+        }
+        stagingFile.delete();
+        if(checkpointFile != null)
+            checkpointFile.delete();
     }
     
-    private void store(FileFragmentPacket ffp) {
-        for(DataNode node : data) {
-            if(node.canAccept(ffp)) {
-                try {
-                    node.accept(ffp);
-                }catch(IOException ex) { }
-                return;
+    private static String stagingKey(String account, File target, String fingerprint) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            for(String part : new String[] {account, target.getAbsolutePath(), fingerprint}) {
+                sha256.update(part.getBytes(StandardCharsets.UTF_8));
+                sha256.update((byte)0);
             }
+            return Security.toHex(sha256.digest()).substring(0, 32);
+        }catch(NoSuchAlgorithmException ex) {
+            throw new InternalError(ex);
         }
-        data.add(new DataNode(ffp));
     }
     
-    private void clump() {
-        data.stream().sorted((d0, d1) -> d0.startSection - d1.startSection).forEach(node -> {
-            if(node.startSection == 0) return;
-            try {
-                data.get(0).absorb(node);
-            }catch(IOException ex) { }
-        });
-    }
-    
-    private static final class DataNode {
-        final File dumpFile;
-        final FileOutputStream dumpStream;
-        final int startSection;
-        int lastSectionNum;
-        
-        public DataNode(FileFragmentPacket ffp) {
-            try {
-                this.dumpFile = new File(Files.createTempFile(ffp.getName().replaceAll("\\W", "_"), Integer.toString(ffp.getSectionNumber()) + ".tmp").toUri());
-                this.dumpFile.deleteOnExit();
-                this.dumpStream = new FileOutputStream(dumpFile, true);
-                this.lastSectionNum = this.startSection = ffp.getSectionNumber();
-                dumpStream.write(ffp.getData().toArray());
-            }catch(IOException ex) {
-                throw new InternalError(ex);
-            }
-        }
-        
-        public boolean canAccept(FileFragmentPacket ffp) {
-            return ffp.getSectionNumber() == lastSectionNum + 1;
-        }
-        
-        public void accept(FileFragmentPacket ffp) throws IOException {
-            dumpStream.write(ffp.getData().toArray());
-            ++ lastSectionNum;
-        }
-        
-        public void absorb(DataNode other) throws IOException {
-            other.dumpStream.flush();
-            FileInputStream istream = new FileInputStream(other.dumpFile);
-            byte[] buffer = new byte[65535];
-            int len;
-            while((len = istream.read(buffer)) > 0) {
-                dumpStream.write(buffer, 0, len);
-            }
-            other.destructor();
-        }
-        
-        public void destructor() {
-            try {
-                dumpStream.flush();
-                dumpStream.close();
-                dumpFile.delete();
-            }catch(IOException ex) { }
-        }
-        
-        @Override
-        protected void finalize() throws Throwable {
-            super.finalize();
-            destructor();
+    // names are only part of a staging file's name to tell them apart, so they're kept well short of any limit
+    private static String shorten(String name) {
+        return name.length() > 64 ? name.substring(0, 64) : name;
+    }
+    
+    // Deletes the staging files and checkpoints of streams which haven't been resumed for STAGING_EXPIRY. Called on
+    // startup, before any stream is received.
+    public static void sweepStaging() {
+        File[] files = stagingDirectory().listFiles((dir, file) -> file.startsWith(".")
+                && (file.endsWith(".part") || file.endsWith(".ckpt") || file.endsWith(".ckpt.tmp")));
+        if(files == null) return;
+        long expired = System.currentTimeMillis() - STAGING_EXPIRY;
+        for(File file : files) {
+            if(file.isFile() && file.lastModified() < expired)
+                file.delete();
         }
     }
+    
+    private static File stagingDirectory() {
+        if(InstanceHandler.side() == Side.CLIENT)
+            return new File(InstanceHandler.config.getString("downloadsDir"));
+        File dir = new File(InstanceHandler.config.getString("dataDir"), "staging");
+        if(!dir.exists())
+            dir.mkdirs();
+        return dir;
+    }
 }
@@ -1,48 +1,99 @@
 package fs.network.ftp;
 
-import stg.generic.ByteBuffer;
-import stg.generic.ByteHelper;
+import fs.network.packet.DirectPacket;
+import io.vertx.core.buffer.Buffer;
 
-public final class FileFragmentPacket extends FTPPacket {
-    private String name;
+public final class FileFragmentPacket extends FTPPacket implements DirectPacket {
+    // stream id, section, length, flags and CRC32
+    public static final int HEADER_SIZE = 17;
+    private static final byte COMPRESSED = 1, CHECKED = 2;
+    private int streamID;
     private int section;
     private int len;
-    private ByteBuffer data;
+    // see FragmentCompression
+    private boolean compressed;
+    // whether the fragment carries the CRC32 of its uncompressed payload. Zero copy fragments don't, the payload never
+    // passes through user space on the sending end.
+    private boolean checked;
+    private int crc;
+    private Buffer data;
     
     public FileFragmentPacket() { }
     
-    public FileFragmentPacket(String name, int section, int len, ByteBuffer data) {
-        this.name = name;
+    private FileFragmentPacket(int streamID, int section, int len, Buffer data, boolean compressed, boolean checked, int crc) {
+        this.streamID = streamID;
         this.section = section;
         this.len = len;
+        this.compressed = compressed;
+        this.checked = checked;
+        this.crc = crc;
         this.data = data;
     }
+    
+    public FileFragmentPacket(int streamID, int section, int len, Buffer data, boolean compressed, int crc) {
+        this(streamID, section, len, data, compressed, true, crc);
+    }
+    
+    // a fragment whose payload is written to the socket separately, see NetworkHandler.sendFileRegion
+    public FileFragmentPacket(int streamID, int section, int len) {
+        this(streamID, section, len, null, false, false, 0);
+    }
+    
+    @Override
+    public int getSerializedSize() {
+        return HEADER_SIZE + len;
+    }
 
     @Override
-    public void serialize(ByteBuffer buffer) {
-        ByteHelper.writeString(name, buffer);
-        ByteHelper.writeInt(section, buffer);
-        ByteHelper.writeInt(len, buffer);
-        buffer.appendAll(data.toArray());
+    public void serialize(Buffer buffer) {
+        serializeHeader(buffer);
+        buffer.appendBuffer(data, 0, len);
+    }
+    
+    public void serializeHeader(Buffer buffer) {
+        buffer.appendInt(streamID);
+        buffer.appendInt(section);
+        buffer.appendInt(len);
+        buffer.appendByte((byte)((compressed ? COMPRESSED : 0) | (checked ? CHECKED : 0)));
+        buffer.appendInt(crc);
     }
 
     @Override
-    public void deserialize(ByteBuffer buffer) {
-        name = ByteHelper.readString(0, buffer);
-        section = ByteHelper.readInt(name.length() + 1, buffer);
-        len = ByteHelper.readInt(name.length() + 5, buffer);
-        data = buffer.subBuffer(name.length() + 9, len);
+    public void deserialize(Buffer buffer) {
+        streamID = buffer.getInt(0);
+        section = buffer.getInt(4);
+        len = buffer.getInt(8);
+        compressed = (buffer.getByte(12) & COMPRESSED) != 0;
+        checked = (buffer.getByte(12) & CHECKED) != 0;
+        crc = buffer.getInt(13);
+        data = buffer.slice(HEADER_SIZE, HEADER_SIZE + len);
     }
     
-    public String getName() {
-        return name;
+    public int getStreamID() {
+        return streamID;
     }
     
     public int getSectionNumber() {
         return section;
     }
     
-    public ByteBuffer getData() {
+    public int getLength() {
+        return len;
+    }
+    
+    public boolean isCompressed() {
+        return compressed;
+    }
+    
+    public boolean isChecked() {
+        return checked;
+    }
+    
+    public int getCRC() {
+        return crc;
+    }
+    
+    public Buffer getData() {
         return data;
     }
 }
@@ -1,5 +1,6 @@
 package fs.network.ftp;
 
+import fs.common.FileBundle;
 import fs.common.InstanceHandler;
 import fs.common.Utils;
 import fs.network.packet.InfoLogPacket;
@@ -7,39 +8,50 @@ import fs.network.packet.Packet;
 import fs.network.packet.PacketHandler;
 import fs.server.Account;
 import fs.server.Server;
+import io.vertx.core.Context;
 import io.vertx.core.net.NetSocket;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import stg.generic.ByteBuffer;
 import stg.generic.ByteHelper;
 import stg.nbt.NbtTagCompound;
 import stg.nbt.NbtTagList;
 
 public final class FileStreamClosePacket extends FTPPacket {
-    private String name;
+    private int streamID;
+    // see StreamDigest
+    private byte[] digest;
     private AsyncFileFragmentAggregator collector;
     
     public FileStreamClosePacket() { }
     
-    public FileStreamClosePacket(String name) {
-        this.name = name;
+    public FileStreamClosePacket(int streamID, byte[] digest) {
+        this.streamID = streamID;
+        this.digest = digest;
     }
 
     @Override
     public void serialize(ByteBuffer buffer) {
-        ByteHelper.writeString(name, buffer);
+        ByteHelper.writeInt(streamID, buffer);
+        buffer.appendAll(digest);
     }
 
     @Override
     public void deserialize(ByteBuffer buffer) {
-        name = ByteHelper.readString(0, buffer);
+        streamID = ByteHelper.readInt(0, buffer);
+        digest = buffer.getRange(4, buffer.size() - 4);
     }
     
-    public String getName() {
-        return name;
+    public int getStreamID() {
+        return streamID;
+    }
+    
+    public byte[] getDigest() {
+        return digest;
     }
     
     public void setCollector(AsyncFileFragmentAggregator ffa) {
@@ -54,53 +66,139 @@ public final class FileStreamClosePacket extends FTPPacket {
         @Override
         public Packet onMessage(FileStreamClosePacket packet, NetSocket socket) {
             NbtTagCompound streamData = packet.collector.getStreamData();
+            Server server = InstanceHandler.server;
+            String username = streamData.getString("username");
+            FileBundle bundle = FileBundle.read(streamData);
+            if(bundle != null && streamData.containsKey("batch") && streamData.getBoolean("batch"))
+                return storeBatch(packet, bundle, username, socket);
             File file = new File(Utils.combinePathElements(InstanceHandler.config.getString("fileStorageDir"),
-                    streamData.containsKey("fileOut") ? streamData.getString("fileOut") : packet.name));
-            if(file.exists() && !InstanceHandler.server.checkDelete(file, streamData.getString("username")))
+                    streamData.containsKey("fileOut") ? streamData.getString("fileOut") : packet.collector.getName()));
+            if(file.exists() && !server.checkDelete(file, username)) {
+                packet.collector.discard();
                 return new InfoLogPacket("A file with that name already exists, and you do not have permnission to overwrite it.");
+            }
+            server.setFilePermissions(file, username, share(Collections.singletonList(file), streamData, socket));
+            boolean delta = streamData.containsKey("delta") && streamData.getBoolean("delta");
+            Context context = Utils.VERTX.getOrCreateContext();
+            // chunking reads the whole file, so it's kept off the event loop
+            store(Collections.singletonList(file), () -> {
+                if(delta)
+                    server.getChunkStore().ingestDelta(packet.collector, file, streamData.getString("deltaHash"));
+                else if(bundle != null)
+                    server.getChunkStore().ingestZip(packet.collector, file, bundle);
+                else
+                    server.getChunkStore().ingest(packet.collector, file);
+            }).whenComplete((unused, ex) -> {
+                if(ex != null)
+                    context.runOnContext(v -> InstanceHandler.NETWORK_HANDLER.sendPacket(
+                            new InfoLogPacket("Failed to store " + file.getName() + ", upload it again."), socket));
+            });
+            return null;
+        }
+        
+        // Stores every file of a batch upload as a file of its own, with a single permissions update for all of them
+        private static Packet storeBatch(FileStreamClosePacket packet, FileBundle bundle, String username, NetSocket socket) {
+            Server server = InstanceHandler.server;
+            File[] targets = new File[bundle.size()];
+            List<File> files = new ArrayList<>();
+            List<String> skipped = new ArrayList<>();
+            for(int i = 0;i < targets.length;++ i) {
+                // files are stored flat, whatever path the client gave them
+                String name = new File(bundle.getName(i)).getName();
+                if(bundle.getName(i).endsWith("/") || name.isEmpty() || name.equals(".") || name.equals("..")) continue;
+                File file = new File(Utils.combinePathElements(InstanceHandler.config.getString("fileStorageDir"), name));
+                if(file.exists() && !server.checkDelete(file, username)) {
+                    skipped.add(name);
+                    continue;
+                }
+                targets[i] = file;
+                files.add(file);
+            }
+            Context context = Utils.VERTX.getOrCreateContext();
+            CompletableFuture<Void> permissionsSaved = server.setFilePermissions(files, username, share(files, packet.collector.getStreamData(), socket));
+            List<String> failed = new ArrayList<>();
+            CompletableFuture<Void> stored = store(files, () -> server.getChunkStore().ingestBundle(packet.collector, bundle, targets)
+                    .forEach(file -> failed.add(file.getName())));
+            // only reported once every file has been stored and the permissions of the whole batch have been committed
+            CompletableFuture.allOf(permissionsSaved, stored).whenComplete((unused, ex) -> {
+                String reply;
+                if(stored.isCompletedExceptionally())
+                    reply = "Failed to store the batch, upload it again.";
+                else if(ex != null)
+                    reply = "Failed to save the permissions of the files.";
+                else
+                    reply = "Stored " + (files.size() - failed.size()) + " files."
+                            + (failed.isEmpty() ? "" : " Failed to store " + String.join(", ", failed) + ", upload them again.")
+                            + (skipped.isEmpty() ? "" : " You do not have permission to overwrite " + String.join(", ", skipped) + ".");
+                context.runOnContext(v -> InstanceHandler.NETWORK_HANDLER.sendPacket(new InfoLogPacket(reply), socket));
+            });
+            return null;
+        }
+        
+        // Lists the files as shared with the downloaders in the stream data, saving each of their accounts once, and
+        // returns those which exist
+        private static List<String> share(List<File> files, NbtTagCompound streamData, NetSocket socket) {
             List<String> downloaders = new ArrayList<>();
+            if(!streamData.getBoolean("shared"))
+                return downloaders;
             Server server = InstanceHandler.server;
-            String username = streamData.getString("username");
-            if(streamData.getBoolean("shared")) {
-                for(String s : streamData.getStringArray("downloaders")) {
-                    Account a = server.getAccount(s);
-                    if(a == null) {
-                        InstanceHandler.NETWORK_HANDLER.sendPacket(new InfoLogPacket(s + " is not a valid account."), socket);
-                        continue;
-                    }
+            for(String s : streamData.getStringArray("downloaders")) {
+                Account a = server.getAccount(s);
+                if(a == null) {
+                    InstanceHandler.NETWORK_HANDLER.sendPacket(new InfoLogPacket(s + " is not a valid account."), socket);
+                    continue;
+                }
+                synchronized(a.data) {
                     if(!a.data.containsKey("sfs"))
                         a.data.setTag("sfs", new NbtTagList());
-                    NbtTagCompound sf = new NbtTagCompound();
-                    sf.setString("filename", file.getName());
-                    sf.setString("sender", username);
-                    a.data.getTagList("sfs").appendTag(sf);
+                    for(File file : files) {
+                        NbtTagCompound sf = new NbtTagCompound();
+                        sf.setString("filename", file.getName());
+                        sf.setString("sender", streamData.getString("username"));
+                        a.data.getTagList("sfs").appendTag(sf);
+                    }
                     server.saveAccountData(a);
-                    downloaders.add(s);
                 }
+                downloaders.add(s);
             }
-            server.setFilePermissions(file, username, downloaders);
-            try {
-                FileOutputStream ostream = new FileOutputStream(file);
-                packet.collector.writeToStream(ostream);
-                ostream.flush();
-                ostream.close();
-            }catch(IOException ex) {
-                Utils.log("Failed to store file in drive.");
-                Utils.logError(ex);
-            }
-            return null;
+            return downloaders;
+        }
+        
+        // The files are dropped from the FileCache once they've been replaced. The future fails if storing them did.
+        private static CompletableFuture<Void> store(List<File> files, Ingestion ingestion) {
+            CompletableFuture<Void> stored = new CompletableFuture<>();
+            Utils.VERTX.<Void>executeBlocking(future -> {
+                try {
+                    ingestion.run();
+                    future.complete();
+                }catch(IOException ex) {
+                    future.fail(ex);
+                }
+            }, false, result -> {
+                files.forEach(InstanceHandler.server.getFileCache()::invalidate);
+                if(result.failed()) {
+                    Utils.log("Failed to store file in drive.");
+                    Utils.logError(result.cause());
+                    stored.completeExceptionally(result.cause());
+                }else
+                    stored.complete(null);
+            });
+            return stored;
         }
     }
     
+    @FunctionalInterface
+    private interface Ingestion {
+        void run() throws IOException;
+    }
+    
     public static final class ClientHandler implements PacketHandler<FileStreamClosePacket> {
         @Override
         public Packet onMessage(FileStreamClosePacket packet, NetSocket socket) {
-            File file = new File(Utils.combinePathElements(InstanceHandler.config.getString("downloadsDir"), packet.name));
+            File file = new File(Utils.combinePathElements(InstanceHandler.config.getString("downloadsDir"), packet.collector.getName()));
             try {
-                FileOutputStream ostream = new FileOutputStream(file);
-                packet.collector.writeToStream(ostream);
-                ostream.flush();
-                ostream.close();
+                packet.collector.commit(file);
+                InstanceHandler.client.downloadFinished(packet.collector.getName());
             }catch(IOException ex) {
                 Utils.log("Failed to store file in drive.");
                 Utils.logError(ex);
@@ -0,0 +1,37 @@
+package fs.network.ftp;
+
+import stg.generic.ByteBuffer;
+import stg.generic.ByteHelper;
+
+// Sent by the receiver of a stream to allow the sender to send another `credits` bytes of fragment data
+public final class FileStreamCreditPacket extends FTPPacket {
+    private int streamID;
+    private int credits;
+    
+    public FileStreamCreditPacket() { }
+    
+    public FileStreamCreditPacket(int streamID, int credits) {
+        this.streamID = streamID;
+        this.credits = credits;
+    }
+
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        ByteHelper.writeInt(streamID, buffer);
+        ByteHelper.writeInt(credits, buffer);
+    }
+
+    @Override
+    public void deserialize(ByteBuffer buffer) {
+        streamID = ByteHelper.readInt(0, buffer);
+        credits = ByteHelper.readInt(4, buffer);
+    }
+    
+    public int getStreamID() {
+        return streamID;
+    }
+    
+    public int getCredits() {
+        return credits;
+    }
+}
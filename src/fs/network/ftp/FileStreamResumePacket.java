@@ -0,0 +1,40 @@
+package fs.network.ftp;
+
+import java.util.BitSet;
+import stg.generic.ByteBuffer;
+import stg.generic.ByteHelper;
+
+// Sent by the receiver of a stream before its first credit grant, listing the sections it already has, from an
+// earlier attempt or in the server's chunk store, so the sender can skip them
+public final class FileStreamResumePacket extends FTPPacket {
+    private int streamID;
+    private byte[] sections;
+    
+    public FileStreamResumePacket() { }
+    
+    public FileStreamResumePacket(int streamID, BitSet sections) {
+        this.streamID = streamID;
+        this.sections = sections.toByteArray();
+    }
+
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        ByteHelper.writeInt(streamID, buffer);
+        ByteHelper.writeInt(sections.length, buffer);
+        buffer.appendAll(sections);
+    }
+
+    @Override
+    public void deserialize(ByteBuffer buffer) {
+        streamID = ByteHelper.readInt(0, buffer);
+        sections = buffer.getRange(8, ByteHelper.readInt(4, buffer));
+    }
+    
+    public int getStreamID() {
+        return streamID;
+    }
+    
+    public BitSet getSections() {
+        return BitSet.valueOf(sections);
+    }
+}
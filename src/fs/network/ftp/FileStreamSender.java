@@ -0,0 +1,455 @@
+package fs.network.ftp;
+
+import fs.common.FileBundle;
+import fs.common.InstanceHandler;
+import fs.common.Security;
+import fs.common.Utils;
+import fs.network.Connection;
+import fs.network.NetworkHandler;
+import fs.network.Side;
+import fs.server.ChunkStore;
+import fs.server.FileCache;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import stg.nbt.NbtTagCompound;
+
+// Streams a file without blocking: fragments are read with an AsyncFile one at a time, whenever the connection's
+// TransferScheduler gives the stream a turn and the receiver has granted enough credits (see FileStreamCreditPacket),
+// so neither side ever holds more than a window's worth of the file in memory. In zero copy mode the payloads aren't
+// read at all, the kernel copies them from the page cache to the socket instead.
+public final class FileStreamSender {
+    private final String file;
+    private final String name;
+    // (offset, length) pairs of the parts of the file which make up the stream, null if it's the whole file
+    private final long[] segments;
+    // set when the server stored the file as chunks, see ChunkStore. Its chunks are pinned until the stream is done.
+    private ChunkStore.Manifest manifest;
+    private boolean pinned;
+    // set when several files are sent as one stream
+    private final FileBundle bundle;
+    // set when the file is served from memory
+    private final FileCache.Entry cached;
+    // this and everything else which takes looking at the source is only set once it's been prepared, see start
+    private long fileSize;
+    private final int fragmentSize;
+    private int numFragments;
+    // stripes only send part of the stream, see StripedFileSender
+    private final boolean striped;
+    private int endSection;
+    private boolean zeroCopy;
+    // the Deflater level fragments are compressed at, 0 if they aren't
+    private final int compression;
+    private final NbtTagCompound streamData;
+    // whether the source is fingerprinted, if the stream data doesn't carry a fingerprint yet
+    private final boolean resumable;
+    // shared by the stripes of a striped stream
+    private StreamDigest digest;
+    private final Connection connection;
+    private final Handler<AsyncResult<Void>> completionHandler;
+    private int streamID;
+    private AsyncFile source;
+    // the chunk of a chunked file, or the file of a bundle, which is currently open
+    private AsyncFile partSource;
+    private int openPart;
+    // sections the receiver already has from an earlier attempt
+    private BitSet skip;
+    private int section;
+    private long credits;
+    private boolean awaitingCredits;
+    private boolean finished;
+    
+    private static final NetworkHandler NET = InstanceHandler.NETWORK_HANDLER;
+    private static final int FINGERPRINT_BLOCK_SIZE = 64 << 10;
+    
+    private FileStreamSender(String file, String name, long[] segments, FileBundle bundle, FileCache.Entry cached, Connection connection,
+            int fragmentSize, boolean zeroCopy, NbtTagCompound streamData, boolean resumable, StreamDigest digest, boolean striped,
+            int streamID, int firstSection, int endSection, long credits, Handler<AsyncResult<Void>> completionHandler) {
+        this.file = file;
+        this.name = name;
+        this.segments = segments;
+        this.bundle = bundle;
+        this.cached = cached;
+        this.fragmentSize = fragmentSize;
+        this.striped = striped;
+        this.endSection = endSection;
+        this.compression = streamData != null && streamData.containsKey("compression") ? streamData.getInteger("compression") : 0;
+        this.zeroCopy = zeroCopy;
+        this.openPart = -1;
+        this.pinned = false;
+        this.streamData = streamData;
+        this.resumable = resumable;
+        this.digest = digest;
+        this.connection = connection;
+        this.completionHandler = completionHandler;
+        this.streamID = streamID;
+        this.section = firstSection;
+        this.credits = credits;
+        this.awaitingCredits = false;
+        this.finished = false;
+    }
+    
+    public FileStreamSender(String file, Connection connection, int fragmentSize, boolean zeroCopy, NbtTagCompound streamData,
+            Handler<AsyncResult<Void>> completionHandler) {
+        this(file, new File(file).getName(), null, null, null, connection, fragmentSize, zeroCopy,
+                streamData == null ? new NbtTagCompound() : streamData, true, null, false, 0, 0, -1, 0L, completionHandler);
+    }
+    
+    // Streams only the given (offset, length) pairs of the file, back to back, under another name. These streams
+    // aren't fingerprinted, since a resumed copy would have to be of the same ranges too.
+    public FileStreamSender(String file, String name, long[] segments, Connection connection, int fragmentSize, NbtTagCompound streamData,
+            Handler<AsyncResult<Void>> completionHandler) {
+        this(file, name, segments, null, null, connection, fragmentSize, false, streamData == null ? new NbtTagCompound() : streamData,
+                false, null, false, 0, 0, -1, 0L, completionHandler);
+    }
+    
+    // Streams the files of a bundle back to back under the given name, with the bundle's index in the stream data
+    public FileStreamSender(FileBundle bundle, String name, Connection connection, int fragmentSize, NbtTagCompound streamData,
+            Handler<AsyncResult<Void>> completionHandler) {
+        this(name, name, null, bundle, null, connection, fragmentSize, false, streamData == null ? new NbtTagCompound() : streamData,
+                true, null, false, 0, 0, -1, 0L, completionHandler);
+        bundle.write(this.streamData);
+    }
+    
+    // Streams a file out of the FileCache, in the fragments it was cached as
+    public FileStreamSender(String file, FileCache.Entry cached, Connection connection, NbtTagCompound streamData,
+            Handler<AsyncResult<Void>> completionHandler) {
+        this(file, new File(file).getName(), null, null, cached, connection, cached.getFragmentSize(), false,
+                streamData == null ? new NbtTagCompound() : streamData, true, null, false, 0, 0, -1, 0L, completionHandler);
+    }
+    
+    // A stripe, which sends the sections [firstSection, endSection) of a stream started over the session's main
+    // connection. It starts out with `window` credits rather than waiting for a grant. The stream was fingerprinted by
+    // the StripedFileSender.
+    FileStreamSender(String file, Connection lane, int fragmentSize, boolean zeroCopy, NbtTagCompound streamData, StreamDigest digest,
+            int streamID, int firstSection, int endSection, int window, Handler<AsyncResult<Void>> completionHandler) {
+        this(file, new File(file).getName(), null, null, null, lane, fragmentSize, zeroCopy, streamData, false, digest, true, streamID,
+                firstSection, endSection, window, completionHandler);
+    }
+    
+    // Identifies the contents of a file well enough to tell whether a partial copy of it can be resumed, without
+    // reading all of it: its size, modification time, and the first and last block. Null if the file can't be read.
+    public static String fingerprint(File file) {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            long length = raf.length();
+            byte[] block = new byte[(int)Math.min(FINGERPRINT_BLOCK_SIZE, length)];
+            raf.readFully(block);
+            sha256.update(block);
+            raf.seek(length - block.length);
+            raf.readFully(block);
+            sha256.update(block);
+            sha256.update(Long.toString(length).getBytes(StandardCharsets.UTF_8));
+            sha256.update(Long.toString(file.lastModified()).getBytes(StandardCharsets.UTF_8));
+            return Security.toHex(sha256.digest());
+        }catch(IOException | NoSuchAlgorithmException ex) {
+            return null;
+        }
+    }
+    
+    // an empty file is still sent as one empty fragment
+    static int fragmentCount(long fileSize, int fragmentSize) {
+        int numFragments = (int)(fileSize / fragmentSize);
+        return numFragments + (fileSize % fragmentSize != 0 || numFragments == 0 ? 1 : 0);
+    }
+    
+    private static long totalLength(long[] segments) {
+        long length = 0L;
+        for(int i = 1;i < segments.length;i += 2)
+            length += segments[i];
+        return length;
+    }
+    
+    // Reading the manifest and fingerprinting the source block, so they're done on a worker before the stream starts
+    public void start() {
+        // everything from here on runs on the socket's context, so the sender never has to be synchronized
+        connection.getContext().<Void>executeBlocking(future -> {
+            try {
+                prepare();
+                future.complete();
+            }catch(IOException ex) {
+                future.fail(ex);
+            }
+        }, false, prepared -> {
+            if(prepared.failed()) {
+                fail(prepared.cause());
+                return;
+            }
+            // the connection may have closed in the meantime, and with it everything it was sending
+            if(NET.getConnection(connection.getSocket()) != connection) {
+                abort();
+                return;
+            }
+            if(zeroCopy || manifest != null || bundle != null || cached != null) {
+                begin();
+                return;
+            }
+            Utils.VERTX.fileSystem().open(file, new OpenOptions().setRead(true).setWrite(false).setCreate(false), result -> {
+                if(result.failed()) {
+                    fail(result.cause());
+                    return;
+                }
+                source = result.result();
+                begin();
+            });
+        });
+    }
+    
+    private void prepare() throws IOException {
+        if(InstanceHandler.side() == Side.SERVER && bundle == null && cached == null) {
+            manifest = InstanceHandler.server.getChunkStore().pin(new File(file));
+            pinned = manifest != null;
+        }
+        if(segments != null)
+            fileSize = totalLength(segments);
+        else if(bundle != null)
+            fileSize = bundle.totalSize();
+        else if(cached != null)
+            fileSize = cached.size();
+        else
+            fileSize = manifest == null ? new File(file).length() : manifest.size;
+        numFragments = fragmentCount(fileSize, fragmentSize);
+        if(endSection < 0)
+            endSection = numFragments;
+        // chunks aren't laid out contiguously, so they can't be sent as a single region, and compressed payloads have to
+        // pass through user space
+        zeroCopy = zeroCopy && manifest == null && bundle == null && cached == null && compression == 0;
+        if(digest == null)
+            digest = new StreamDigest(numFragments);
+        if(resumable && !streamData.containsKey("fingerprint")) {
+            String fingerprint = bundle != null ? bundle.fingerprint() : cached != null ? cached.getFingerprint() : fingerprint(new File(file));
+            if(fingerprint != null)
+                streamData.setString("fingerprint", fingerprint);
+        }
+    }
+    
+    public int getStreamID() {
+        return streamID;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public void grantCredits(int amount) {
+        credits += amount;
+        if(awaitingCredits) {
+            awaitingCredits = false;
+            connection.scheduleSender(this);
+        }
+    }
+    
+    public void resume(BitSet received) {
+        skip = received;
+    }
+    
+    // whether the next fragment (or the close packet) can go out without exceeding the granted credits
+    public boolean canSend() {
+        if(finished) return false;
+        skipReceived();
+        if(section == endSection) return true;
+        if(credits < currentLength()) {
+            awaitingCredits = true;
+            return false;
+        }
+        return true;
+    }
+    
+    // called when the receiver terminates the stream or the connection goes away mid-transfer
+    public void abort() {
+        if(finished) return;
+        finished = true;
+        closeSources();
+        connection.removeSender(this);
+        complete(Future.failedFuture("The transfer of " + name + " was aborted."));
+    }
+    
+    private void begin() {
+        if(striped) {
+            connection.registerSender(this);
+            connection.scheduleSender(this);
+            return;
+        }
+        streamID = connection.nextStreamID();
+        connection.registerSender(this);
+        NET.sendPacket(new FileStreamStartPacket(streamID, file, name, numFragments, fileSize, fragmentSize, streamData), connection.getSocket());
+        // nothing is sent until the receiver has granted the first window
+        awaitingCredits = true;
+    }
+    
+    private void skipReceived() {
+        if(skip == null) return;
+        while(section < endSection && skip.get(section))
+            ++ section;
+    }
+    
+    private int currentLength() {
+        return (int)Math.min(fragmentSize, fileSize - (long)section * fragmentSize);
+    }
+    
+    // Sends a single fragment, or the close packet once they've all been sent, and calls `sent` once the socket
+    // has taken it. Only ever called by the connection's TransferScheduler, after canSend.
+    public void sendNextFragment(Runnable sent) {
+        skipReceived();
+        if(section == endSection) {
+            finished = true;
+            if(!striped)
+                NET.sendPacket(new FileStreamClosePacket(streamID, digest.digest()), connection.getSocket());
+            closeSources();
+            connection.removeSender(this);
+            complete(Future.succeededFuture());
+            sent.run();
+            return;
+        }
+        long position = (long)section * fragmentSize;
+        int len = currentLength();
+        credits -= len;
+        if(zeroCopy) {
+            NET.sendFileRegion(new FileFragmentPacket(streamID, section, len), file, position, connection.getSocket(), result -> {
+                if(result.failed())
+                    fail(result.cause());
+                else
+                    ++ section;
+                sent.run();
+            });
+            return;
+        }
+        if(cached != null) {
+            sendPayload(len, cached.fragment(section), cached.crc(section), sent);
+            return;
+        }
+        readFragment(Buffer.buffer(len), position, len, result -> {
+            if(result.failed()) {
+                fail(result.cause());
+                sent.run();
+                return;
+            }
+            sendPayload(len, result.result(), StreamDigest.crc(result.result()), sent);
+        });
+    }
+    
+    private void sendPayload(int len, Buffer data, int crc, Runnable sent) {
+        if(compression == 0 || finished)
+            sendFragment(len, data, null, crc, sent);
+        else{
+            // deflating takes long enough to be kept off the event loop
+            Utils.VERTX.<Buffer>executeBlocking(future -> future.complete(FragmentCompression.compress(data, compression)),
+                    false, compressed -> sendFragment(len, data, compressed.result(), crc, sent));
+        }
+    }
+    
+    private void sendFragment(int len, Buffer data, Buffer compressed, int crc, Runnable sent) {
+        if(!finished) {
+            if(compressed == null)
+                NET.sendPacket(new FileFragmentPacket(streamID, section, len, data, false, crc), connection.getSocket());
+            else
+                NET.sendPacket(new FileFragmentPacket(streamID, section, compressed.length(), compressed, true, crc), connection.getSocket());
+            digest.record(section, crc);
+            ++ section;
+        }
+        sent.run();
+    }
+    
+    // Reads `len` bytes of the stream at `position`, which may span several segments of a segmented stream, several
+    // chunks of a chunked file or several files of a bundle
+    private void readFragment(Buffer buffer, long position, int len, Handler<AsyncResult<Buffer>> handler) {
+        if(len == 0) {
+            handler.handle(Future.succeededFuture(buffer));
+            return;
+        }
+        long filePosition = position;
+        int chunk = len;
+        // the chunk or file of a bundle the read falls in, if it doesn't come from the source file
+        String part = null;
+        int partIndex = -1;
+        if(bundle != null) {
+            partIndex = bundle.entryAt(position);
+            filePosition = position - bundle.getOffset(partIndex);
+            chunk = (int)Math.min(chunk, bundle.getSize(partIndex) - filePosition);
+            part = bundle.getFile(partIndex).getPath();
+        }else if(segments != null) {
+            long start = 0L;
+            int i = 0;
+            while(position >= start + segments[i + 1]) {
+                start += segments[i + 1];
+                i += 2;
+            }
+            filePosition = segments[i] + position - start;
+            chunk = (int)Math.min(chunk, start + segments[i + 1] - position);
+        }
+        if(manifest != null) {
+            chunk = (int)Math.min(chunk, ChunkStore.CHUNK_SIZE - filePosition % ChunkStore.CHUNK_SIZE);
+            partIndex = (int)(filePosition / ChunkStore.CHUNK_SIZE);
+            part = InstanceHandler.server.getChunkStore().chunkFile(manifest.hashes[partIndex]).getPath();
+            filePosition %= ChunkStore.CHUNK_SIZE;
+        }
+        int read = chunk;
+        Handler<AsyncResult<Buffer>> next = result -> {
+            if(result.failed())
+                handler.handle(result);
+            else
+                readFragment(buffer, position + read, len - read, handler);
+        };
+        if(part == null)
+            source.read(buffer, buffer.length(), filePosition, chunk, next);
+        else
+            readPart(partIndex, part, filePosition, buffer, chunk, next);
+    }
+    
+    // fragments are read in order, so only one chunk or file of a bundle is kept open at a time
+    private void readPart(int index, String path, long offset, Buffer buffer, int len, Handler<AsyncResult<Buffer>> handler) {
+        if(index == openPart) {
+            partSource.read(buffer, buffer.length(), offset, len, handler);
+            return;
+        }
+        if(partSource != null)
+            partSource.close();
+        partSource = null;
+        openPart = -1;
+        Utils.VERTX.fileSystem().open(path, new OpenOptions().setRead(true).setWrite(false).setCreate(false), result -> {
+            if(result.failed()) {
+                handler.handle(Future.failedFuture(result.cause()));
+                return;
+            }
+            partSource = result.result();
+            openPart = index;
+            partSource.read(buffer, buffer.length(), offset, len, handler);
+        });
+    }
+    
+    private void closeSources() {
+        if(source != null)
+            source.close();
+        if(partSource != null)
+            partSource.close();
+        if(pinned) {
+            pinned = false;
+            InstanceHandler.server.getChunkStore().unpin(manifest);
+        }
+    }
+    
+    private void fail(Throwable cause) {
+        if(finished) return;
+        finished = true;
+        Utils.logError(cause);
+        NET.sendPacket(new TerminateFileStreamPacket(streamID), connection.getSocket());
+        closeSources();
+        connection.removeSender(this);
+        complete(Future.failedFuture(cause));
+    }
+    
+    private void complete(AsyncResult<Void> result) {
+        if(completionHandler != null)
+            completionHandler.handle(result);
+    }
+}
@@ -5,43 +5,56 @@ import stg.generic.ByteHelper;
 import stg.nbt.NbtTagCompound;
 
 public final class FileStreamStartPacket extends FTPPacket {
+    private int streamID;
     private String name;
     private String file;
     private int numFragments;
     private long fileLength;
+    private int fragmentSize;
     private NbtTagCompound streamData;
     
     public FileStreamStartPacket() { }
     
-    public FileStreamStartPacket(String file, String name, int numFragments, long fileLength, NbtTagCompound streamData) {
+    public FileStreamStartPacket(int streamID, String file, String name, int numFragments, long fileLength, int fragmentSize, NbtTagCompound streamData) {
+        this.streamID = streamID;
         this.name = name;
         this.file = file;
         this.numFragments = numFragments;
         this.fileLength = fileLength;
+        this.fragmentSize = fragmentSize;
         this.streamData = streamData;
     }
     
-    public FileStreamStartPacket(String file, String name, int numFragments, long fileLength) {
-        this(file, name, numFragments, fileLength, new NbtTagCompound());
+    public FileStreamStartPacket(int streamID, String file, String name, int numFragments, long fileLength, int fragmentSize) {
+        this(streamID, file, name, numFragments, fileLength, fragmentSize, new NbtTagCompound());
     }
     
     @Override
     public void serialize(ByteBuffer buffer) {
+        ByteHelper.writeInt(streamID, buffer);
         ByteHelper.writeString(name, buffer);
         ByteHelper.writeString(file, buffer);
         ByteHelper.writeInt(numFragments, buffer);
         ByteHelper.writeLong(fileLength, buffer);
+        ByteHelper.writeInt(fragmentSize, buffer);
         if(streamData.size() != 0) streamData.writeToBuffer(buffer);
     }
 
     @Override
     public void deserialize(ByteBuffer buffer) {
-        name = ByteHelper.readString(0, buffer);
-        file = ByteHelper.readString(name.length() + 1, buffer);
-        numFragments = ByteHelper.readInt(name.length() + file.length() + 2, buffer);
-        fileLength = ByteHelper.readLong(name.length() + file.length() + 6, buffer);
+        streamID = ByteHelper.readInt(0, buffer);
+        name = ByteHelper.readString(4, buffer);
+        file = ByteHelper.readString(name.length() + 5, buffer);
+        numFragments = ByteHelper.readInt(name.length() + file.length() + 6, buffer);
+        fileLength = ByteHelper.readLong(name.length() + file.length() + 10, buffer);
+        fragmentSize = ByteHelper.readInt(name.length() + file.length() + 18, buffer);
         streamData = new NbtTagCompound();
-        if(buffer.size() > name.length() + file.length() + 14) streamData.readFromBuffer(buffer, name.length() + file.length() + 14);
+        if(buffer.size() > name.length() + file.length() + 22) streamData.readFromBuffer(buffer, name.length() + file.length() + 22);
+    }
+    
+    // the id every other packet of the stream refers to it by
+    public int getStreamID() {
+        return streamID;
     }
     
     public String getName() {
@@ -63,4 +76,9 @@ public final class FileStreamStartPacket extends FTPPacket {
     public long getFileSize() {
         return fileLength;
     }
+    
+    // every fragment but the last is exactly this long, which is what fragment offsets are derived from
+    public int getFragmentSize() {
+        return fragmentSize;
+    }
 }
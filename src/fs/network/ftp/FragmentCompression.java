@@ -0,0 +1,75 @@
+package fs.network.ftp;
+
+import io.vertx.core.buffer.Buffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Deflates fragment payloads for streams whose stream data asks for a "compression" level. Each fragment is
+// compressed on its own, so they can still be written out of order and skipped on resume. Fragments whose sampled
+// entropy says they're already compressed (archives, media) are sent as they are, as are those which don't shrink.
+final class FragmentCompression {
+    private static final int SAMPLES = 16;
+    private static final int SAMPLE_SIZE = 256;
+    private static final int MIN_COMPRESSED_SIZE = 1024;
+    // bits per byte above which a fragment isn't worth trying to compress
+    private static final double MAX_ENTROPY = 7.5;
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+    
+    private FragmentCompression() { }
+    
+    // null if the fragment should be sent uncompressed
+    static Buffer compress(Buffer raw, int level) {
+        if(raw.length() < MIN_COMPRESSED_SIZE || sampledEntropy(raw) > MAX_ENTROPY)
+            return null;
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(raw.getBytes());
+        deflater.finish();
+        byte[] out = new byte[raw.length()];
+        int len = 0;
+        while(!deflater.finished() && len < out.length)
+            len += deflater.deflate(out, len, out.length - len);
+        return deflater.finished() ? Buffer.buffer(len).appendBytes(out, 0, len) : null;
+    }
+    
+    static Buffer decompress(Buffer data, int rawLength) throws DataFormatException {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(data.getBytes());
+        byte[] out = new byte[rawLength];
+        int len = 0;
+        while(!inflater.finished() && len < out.length) {
+            int inflated = inflater.inflate(out, len, out.length - len);
+            if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                break;
+            len += inflated;
+        }
+        if(!inflater.finished() || len != rawLength)
+            throw new DataFormatException("A compressed fragment didn't inflate to the length of its section.");
+        return Buffer.buffer(out);
+    }
+    
+    // Shannon entropy of a few evenly spaced samples of the payload, so that judging a fragment costs a fraction of
+    // compressing it
+    private static double sampledEntropy(Buffer raw) {
+        int[] counts = new int[256];
+        int total = 0;
+        int stride = Math.max(SAMPLE_SIZE, raw.length() / SAMPLES);
+        for(int start = 0;start < raw.length();start += stride) {
+            int end = Math.min(raw.length(), start + SAMPLE_SIZE);
+            for(int i = start;i < end;++ i)
+                ++ counts[raw.getByte(i) & 0xFF];
+            total += end - start;
+        }
+        double entropy = 0.0;
+        for(int count : counts) {
+            if(count == 0) continue;
+            double p = (double)count / total;
+            entropy -= p * Math.log(p) / Math.log(2);
+        }
+        return entropy;
+    }
+}
@@ -0,0 +1,55 @@
+package fs.network.ftp;
+
+import io.vertx.core.buffer.Buffer;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+// The CRC32s of the checked fragments of a stream by section, which the digest in its FileStreamClosePacket is made
+// from. Both ends record the fragments of the current attempt as they go by, the sender as it sends them and the
+// receiver as it verifies them, so checking it takes no second pass over the file.
+//
+// It isn't a hash of the file. It only tells the receiver that it verified exactly the checked fragments the sender
+// sent in this attempt, none lost, left over from an earlier attempt or from another stream. Sections skipped on resume
+// or taken from the chunk store aren't part of it, and neither are zero-copy fragments, which carry no CRC since their
+// data never passes through the sender. Those which are sent anyway are recorded by both ends.
+final class StreamDigest {
+    private final int[] crcs;
+    private final BitSet sections;
+    
+    StreamDigest(int numFragments) {
+        this.crcs = new int[numFragments];
+        this.sections = new BitSet(numFragments);
+    }
+    
+    // the stripes of a stream record into the same digest from their own event loops
+    synchronized void record(int section, int crc) {
+        crcs[section] = crc;
+        sections.set(section);
+    }
+    
+    synchronized byte[] digest() {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            ByteBuffer entry = ByteBuffer.allocate(8);
+            for(int i = sections.nextSetBit(0);i >= 0;i = sections.nextSetBit(i + 1)) {
+                entry.clear();
+                entry.putInt(i).putInt(crcs[i]).flip();
+                sha256.update(entry);
+            }
+            return sha256.digest();
+        }catch(NoSuchAlgorithmException ex) {
+            throw new InternalError(ex);
+        }
+    }
+    
+    static int crc(Buffer data) {
+        CRC32 crc = new CRC32();
+        // a fragment which arrived over several reads is made up of several buffers
+        for(ByteBuffer buf : data.getByteBuf().nioBuffers())
+            crc.update(buf);
+        return (int)crc.getValue();
+    }
+}
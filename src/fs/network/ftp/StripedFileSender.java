@@ -0,0 +1,109 @@
+package fs.network.ftp;
+
+import fs.common.InstanceHandler;
+import fs.network.Connection;
+import fs.network.NetworkHandler;
+import fs.network.Side;
+import fs.server.ChunkStore;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import java.io.File;
+import java.util.List;
+import stg.nbt.NbtTagCompound;
+
+// Splits a stream into contiguous ranges of fragments and sends each range over its own data connection (see
+// Connection.joinSession), so a large file isn't limited to a single TCP connection and event loop. The start and
+// close packets go over the main connection, the receiver reassembles the ranges by offset.
+public final class StripedFileSender {
+    private final String file;
+    private final String name;
+    // set once the file has been looked at, see start
+    private long fileSize;
+    private final int fragmentSize;
+    private final boolean zeroCopy;
+    private final NbtTagCompound streamData;
+    private final Connection connection;
+    private final List<Connection> lanes;
+    private final Handler<AsyncResult<Void>> completionHandler;
+    private FileStreamSender[] stripes;
+    private StreamDigest digest;
+    private int remaining;
+    private boolean finished;
+    
+    private static final NetworkHandler NET = InstanceHandler.NETWORK_HANDLER;
+    
+    public StripedFileSender(String file, Connection connection, List<Connection> lanes, int fragmentSize, boolean zeroCopy,
+            NbtTagCompound streamData, Handler<AsyncResult<Void>> completionHandler) {
+        this.file = file;
+        this.name = new File(file).getName();
+        this.fragmentSize = fragmentSize;
+        this.zeroCopy = zeroCopy;
+        this.streamData = streamData == null ? new NbtTagCompound() : streamData;
+        this.connection = connection;
+        this.lanes = lanes;
+        this.completionHandler = completionHandler;
+        this.remaining = 0;
+        this.finished = false;
+    }
+    
+    // The file is sized and fingerprinted on a worker, like FileStreamSender does
+    public void start() {
+        connection.getContext().<Void>executeBlocking(future -> {
+            File f = new File(file);
+            fileSize = InstanceHandler.side() == Side.SERVER ? ChunkStore.sizeOf(f) : f.length();
+            if(!streamData.containsKey("fingerprint")) {
+                String fingerprint = FileStreamSender.fingerprint(f);
+                if(fingerprint != null)
+                    streamData.setString("fingerprint", fingerprint);
+            }
+            future.complete();
+        }, false, prepared -> {
+            if(prepared.failed()) {
+                complete(Future.failedFuture(prepared.cause()));
+                return;
+            }
+            // the stripes run on their own connections' contexts, but report back to the main one
+            int streamID = connection.nextStreamID();
+            int numFragments = FileStreamSender.fragmentCount(fileSize, fragmentSize);
+            streamData.setInteger("stripes", lanes.size());
+            NET.sendPacket(new FileStreamStartPacket(streamID, file, name, numFragments, fileSize, fragmentSize, streamData), connection.getSocket());
+            int window = AsyncFileFragmentAggregator.stripeWindow(lanes.size(), fragmentSize);
+            digest = new StreamDigest(numFragments);
+            stripes = new FileStreamSender[lanes.size()];
+            remaining = stripes.length;
+            for(int i = 0;i < stripes.length;++ i) {
+                int first = (int)((long)numFragments * i / stripes.length);
+                int end = (int)((long)numFragments * (i + 1) / stripes.length);
+                stripes[i] = new FileStreamSender(file, lanes.get(i), fragmentSize, zeroCopy, streamData, digest, streamID, first, end, window,
+                        result -> connection.getContext().runOnContext(u -> stripeFinished(streamID, result)));
+            }
+            for(FileStreamSender stripe : stripes)
+                stripe.start();
+        });
+    }
+    
+    private void stripeFinished(int streamID, AsyncResult<Void> result) {
+        if(finished) return;
+        if(result.failed()) {
+            finished = true;
+            // the failed stripe has already terminated the stream on the receiver's end
+            for(int i = 0;i < stripes.length;++ i) {
+                FileStreamSender stripe = stripes[i];
+                lanes.get(i).getContext().runOnContext(unused -> stripe.abort());
+            }
+            complete(result);
+            return;
+        }
+        if(-- remaining == 0) {
+            finished = true;
+            NET.sendPacket(new FileStreamClosePacket(streamID, digest.digest()), connection.getSocket());
+            complete(Future.succeededFuture());
+        }
+    }
+    
+    private void complete(AsyncResult<Void> result) {
+        if(completionHandler != null)
+            completionHandler.handle(result);
+    }
+}
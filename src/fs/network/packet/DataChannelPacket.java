@@ -0,0 +1,39 @@
+package fs.network.packet;
+
+import fs.common.InstanceHandler;
+import fs.common.Utils;
+import io.vertx.core.net.NetSocket;
+import stg.generic.ByteBuffer;
+import stg.generic.ByteHelper;
+
+// The first packet sent over an extra data connection, which joins it to the session the token was issued to
+public final class DataChannelPacket implements Packet {
+    private String token;
+    
+    public DataChannelPacket() { }
+    
+    public DataChannelPacket(String token) {
+        this.token = token;
+    }
+
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        ByteHelper.writeString(token, buffer);
+    }
+
+    @Override
+    public void deserialize(ByteBuffer buffer) {
+        token = ByteHelper.readString(0, buffer);
+    }
+    
+    public static final class Handler implements PacketHandler<DataChannelPacket> {
+        @Override
+        public Packet onMessage(DataChannelPacket packet, NetSocket socket) {
+            if(!InstanceHandler.server.joinSession(socket, packet.token)) {
+                Utils.log("A client tried to open a data connection for an unknown session, or over one which already has a session.");
+                socket.close();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package fs.network.packet;
+
+import io.vertx.core.buffer.Buffer;
+import stg.generic.ByteBuffer;
+
+// A packet which reads and writes its body directly from/to the network frame rather than through an intermediate
+// ByteBuffer. Meant for bulk packets, where every extra copy of the payload shows.
+public interface DirectPacket extends Packet {
+    // the exact number of bytes serialize(Buffer) will append, so the frame can be allocated once
+    int getSerializedSize();
+    
+    void serialize(Buffer buffer);
+    
+    // the buffer is a slice of the received frame, so implementations may keep slices of it without copying
+    void deserialize(Buffer buffer);
+    
+    @Override
+    default void serialize(ByteBuffer buffer) {
+        Buffer tmp = Buffer.buffer(getSerializedSize());
+        serialize(tmp);
+        buffer.appendAll(tmp.getBytes());
+    }
+    
+    @Override
+    default void deserialize(ByteBuffer buffer) {
+        deserialize(Buffer.buffer(buffer.toArray()));
+    }
+}
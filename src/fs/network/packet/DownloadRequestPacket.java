@@ -4,33 +4,41 @@ import fs.common.InstanceHandler;
 import fs.common.Utils;
 import fs.network.NetworkHandler;
 import fs.server.Account;
+import fs.server.ChunkStore;
 import fs.server.Server;
 import io.vertx.core.net.NetSocket;
 import java.io.File;
+import java.util.zip.Deflater;
 import stg.generic.ByteBuffer;
 import stg.generic.ByteHelper;
+import stg.nbt.NbtTagCompound;
 
 public final class DownloadRequestPacket implements Packet {
     private String file;
     private int accountID;
+    // the Deflater level the file should be sent at, 0 for none (see FileStreamSender)
+    private int compression;
     
     public DownloadRequestPacket() { }
     
-    public DownloadRequestPacket(String file, int accountID) {
+    public DownloadRequestPacket(String file, int accountID, int compression) {
         this.file = file;
         this.accountID = accountID;
+        this.compression = compression;
     }
 
     @Override
     public void serialize(ByteBuffer buffer) {
         ByteHelper.writeString(file, buffer);
         ByteHelper.writeInt(accountID, buffer);
+        ByteHelper.writeInt(compression, buffer);
     }
 
     @Override
     public void deserialize(ByteBuffer buffer) {
         file = ByteHelper.readString(0, buffer);
         accountID = ByteHelper.readInt(file.length() + 1, buffer);
+        compression = ByteHelper.readInt(file.length() + 5, buffer);
     }
     
     public static final class Handler implements PacketHandler<DownloadRequestPacket> {
@@ -50,23 +58,35 @@ public final class DownloadRequestPacket implements Packet {
                 return new InfoLogPacket("You do not have access to that file.");
             if(!file.exists())
                 return new InfoLogPacket("That file does not exist.");
-            if(sender.data.containsKey("sfs")) {
-                int index = -1;
-                for(int i = 0;i < sender.data.getTagList("sfs").size();++ i) {
-                    if(sender.data.getTagList("sfs").getTagCompound(i).getString("filename").equals(file.getName())) {
-                        index = i;
-                        break;
+            synchronized(sender.data) {
+                if(sender.data.containsKey("sfs")) {
+                    int index = -1;
+                    for(int i = 0;i < sender.data.getTagList("sfs").size();++ i) {
+                        if(sender.data.getTagList("sfs").getTagCompound(i).getString("filename").equals(file.getName())) {
+                            index = i;
+                            break;
+                        }
+                    }
+                    if(index != -1) {
+                        sender.data.getTagList("sfs").remove(index);
+                        server.saveAccountData(sender);
                     }
-                }
-                if(index != -1) {
-                    sender.data.getTagList("sfs").remove(index);
-                    server.saveAccountData(sender);
                 }
             }
-            if(file.length() > 6525000L)
-                InstanceHandler.NETWORK_HANDLER.sendFileAsync(path, socket, (int)NetworkHandler.MAX_FTP_PACKET_SIZE, null);
+            NbtTagCompound streamData = new NbtTagCompound();
+            if(packet.compression > 0)
+                streamData.setInteger("compression", Utils.constrain(packet.compression, Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION));
+            long size = ChunkStore.sizeOf(file);
+            if(server.getFileCache().accepts(size))
+                InstanceHandler.NETWORK_HANDLER.sendFileCached(path, server.getFileCache(), socket, streamData);
+            else if(size >= NetworkHandler.MIN_STRIPED_FILE_SIZE)
+                InstanceHandler.NETWORK_HANDLER.sendFileStriped(path, socket, server.zeroCopyDownloads(), streamData, null);
+            else if(server.zeroCopyDownloads())
+                InstanceHandler.NETWORK_HANDLER.sendFileZeroCopy(path, socket, streamData);
+            else if(size > 6525000L)
+                InstanceHandler.NETWORK_HANDLER.sendFileAsync(path, socket, (int)NetworkHandler.MAX_FTP_PACKET_SIZE, streamData);
             else
-                InstanceHandler.NETWORK_HANDLER.sendFile(path, socket, null);
+                InstanceHandler.NETWORK_HANDLER.sendFile(path, socket, streamData);
             return new InfoLogPacket("Downloading file...");
         }
     }
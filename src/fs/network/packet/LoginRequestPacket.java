@@ -7,7 +7,6 @@ import fs.server.Server;
 import io.vertx.core.net.NetSocket;
 import stg.generic.ByteBuffer;
 import stg.generic.ByteHelper;
-import stg.nbt.NbtTagList;
 
 public final class LoginRequestPacket implements Packet {
     private int accountID;
@@ -49,7 +48,7 @@ public final class LoginRequestPacket implements Packet {
             if(packet.accountID == -1) {
                 Account account = server.createAccount(packet.username, packet.password);
                 if(account != null) {
-                    server.validateAccount(socket.remoteAddress(), account);
+                    server.validateAccount(socket, account);
                     InstanceHandler.NETWORK_HANDLER.sendPacket(new AccountIDAssignmentPacket(account.id), socket);
                     return new InfoLogPacket("Your account has been created.");
                 }else{
@@ -58,9 +57,9 @@ public final class LoginRequestPacket implements Packet {
                     return null;
                 }
             }else{
-                NbtTagList accounts = InstanceHandler.dataHandler.getFileData("caches.nbt").getTagList("accounts");
-                Account account;
-                if(packet.accountID < 0 || packet.accountID >= accounts.size()) {
+                Account account = server.getAccount(packet.accountID);
+                // the client's ID is out of date if accounts before it were deleted
+                if(account == null || !packet.username.equalsIgnoreCase(account.username)) {
                     account = server.getAccount(packet.username);
                     if(account == null) {
                         socket.close();
@@ -69,23 +68,15 @@ public final class LoginRequestPacket implements Packet {
                         if(account.id != packet.accountID)
                             InstanceHandler.NETWORK_HANDLER.sendPacket(new AccountIDAssignmentPacket(account.id), socket);
                     }
-                }else{
-                    account = server.getAccount(packet.accountID);
-                    if(!packet.username.equalsIgnoreCase(account.username)) {
-                        account = server.getAccount(packet.username);
-                        if(account == null) {
-                            socket.close();
-                            return null;
-                        }else{
-                            if(account.id != packet.accountID)
-                                InstanceHandler.NETWORK_HANDLER.sendPacket(new AccountIDAssignmentPacket(account.id), socket);
-                        }
-                    }
                 }
-                if(account.data.containsKey("sfs") && account.data.getTagList("sfs").size() > 0)
+                boolean shared;
+                synchronized(account.data) {
+                    shared = account.data.containsKey("sfs") && account.data.getTagList("sfs").size() > 0;
+                }
+                if(shared)
                     InstanceHandler.NETWORK_HANDLER.sendPacket(new InfoLogPacket("Files have been shared with you. Type \"vsf\" to view the files."), socket);
                 if(account.credentialsMatch(packet.username, packet.password)) {
-                    server.validateAccount(socket.remoteAddress(), account);
+                    server.validateAccount(socket, account);
                     return new InfoLogPacket("Successfully connected to server.");
                 }else
                     return new InfoLogPacket("Invalid login credentials.");
@@ -0,0 +1,97 @@
+package fs.network.packet;
+
+import fs.common.InstanceHandler;
+import fs.common.Utils;
+import fs.server.Account;
+import fs.server.ChunkStore;
+import fs.server.Server;
+import io.vertx.core.net.NetSocket;
+import java.io.File;
+import stg.generic.ByteBuffer;
+import stg.generic.ByteHelper;
+
+// Requests only some byte ranges of a file, which are streamed back to back as "<name>.range". A negative offset
+// counts from the end of the file and a negative length reaches to it, so the tail of a growing log is (-n, -1).
+public final class RangeDownloadRequestPacket implements Packet {
+    public static final int MAX_RANGES = 1024;
+    private String file;
+    private int accountID;
+    // (offset, length) pairs, null if the packet asked for more than MAX_RANGES or more than it holds
+    private long[] ranges;
+    
+    public RangeDownloadRequestPacket() { }
+    
+    public RangeDownloadRequestPacket(String file, int accountID, long[] ranges) {
+        this.file = file;
+        this.accountID = accountID;
+        this.ranges = ranges;
+    }
+
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        ByteHelper.writeString(file, buffer);
+        ByteHelper.writeInt(accountID, buffer);
+        ByteHelper.writeInt(ranges.length / 2, buffer);
+        for(long l : ranges)
+            ByteHelper.writeLong(l, buffer);
+    }
+
+    @Override
+    public void deserialize(ByteBuffer buffer) {
+        file = ByteHelper.readString(0, buffer);
+        accountID = ByteHelper.readInt(file.length() + 1, buffer);
+        int count = ByteHelper.readInt(file.length() + 5, buffer);
+        // the count is only trusted as far as the packet actually carries that many ranges
+        if(count < 0 || count > MAX_RANGES || count > (buffer.size() - file.length() - 9) / 16) {
+            ranges = null;
+            return;
+        }
+        ranges = new long[count * 2];
+        for(int i = 0;i < ranges.length;++ i)
+            ranges[i] = ByteHelper.readLong(file.length() + 9 + i * 8, buffer);
+    }
+    
+    public static String rangeFileName(String file) {
+        return new File(file).getName() + ".range";
+    }
+    
+    public static final class Handler implements PacketHandler<RangeDownloadRequestPacket> {
+        @Override
+        public Packet onMessage(RangeDownloadRequestPacket packet, NetSocket socket) {
+            if(packet.ranges == null)
+                return new InfoLogPacket("At most " + MAX_RANGES + " ranges can be downloaded at once.");
+            String path = Utils.combinePathElements(InstanceHandler.config.getString("fileStorageDir"), packet.file);
+            File file = new File(path);
+            Server server = InstanceHandler.server;
+            // the account the connection logged in as, rather than the ID the client claims
+            Account sender = InstanceHandler.NETWORK_HANDLER.getConnection(socket).getAccount();
+            if(sender == null)
+                return new InfoLogPacket("You are not logged in.");
+            if(!server.checkDownload(file, sender.username))
+                return new InfoLogPacket("You do not have access to that file.");
+            if(!file.exists())
+                return new InfoLogPacket("That file does not exist.");
+            long[] segments = clampRanges(packet.ranges, ChunkStore.sizeOf(file));
+            if(segments.length == 0)
+                return new InfoLogPacket("None of the requested ranges are within the file.");
+            InstanceHandler.NETWORK_HANDLER.sendFileRange(path, rangeFileName(packet.file), segments, socket, null);
+            return new InfoLogPacket("Downloading file ranges...");
+        }
+        
+        // resolves offsets from the end and lengths to the end, and drops whatever ends up empty
+        private static long[] clampRanges(long[] ranges, long fileSize) {
+            long[] segments = new long[ranges.length];
+            int count = 0;
+            for(int i = 0;i + 1 < ranges.length;i += 2) {
+                long offset = ranges[i] < 0 ? Math.max(0L, fileSize + ranges[i]) : Math.min(ranges[i], fileSize);
+                long length = ranges[i + 1] < 0 ? fileSize - offset : Math.min(ranges[i + 1], fileSize - offset);
+                if(length == 0) continue;
+                segments[count++] = offset;
+                segments[count++] = length;
+            }
+            long[] clamped = new long[count];
+            System.arraycopy(segments, 0, clamped, 0, count);
+            return clamped;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package fs.network.packet;
+
+import fs.common.InstanceHandler;
+import io.vertx.core.net.NetSocket;
+import stg.generic.ByteBuffer;
+import stg.generic.ByteHelper;
+
+// Sent to a client once it has logged in. Extra data connections present the token to join the session.
+public final class SessionTokenPacket implements Packet {
+    private String token;
+    
+    public SessionTokenPacket() { }
+    
+    public SessionTokenPacket(String token) {
+        this.token = token;
+    }
+
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        ByteHelper.writeString(token, buffer);
+    }
+
+    @Override
+    public void deserialize(ByteBuffer buffer) {
+        token = ByteHelper.readString(0, buffer);
+    }
+    
+    public static final class Handler implements PacketHandler<SessionTokenPacket> {
+        @Override
+        public Packet onMessage(SessionTokenPacket packet, NetSocket socket) {
+            InstanceHandler.client.sessionStarted(packet.token);
+            return null;
+        }
+    }
+}
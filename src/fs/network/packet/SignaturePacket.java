@@ -0,0 +1,52 @@
+package fs.network.packet;
+
+import fs.common.Delta;
+import fs.common.InstanceHandler;
+import io.vertx.core.net.NetSocket;
+import stg.generic.ByteBuffer;
+import stg.generic.ByteHelper;
+
+// The reply to a SignatureRequestPacket, empty if the server has no copy to diff against
+public final class SignaturePacket implements Packet {
+    private String file;
+    private Delta.Signature signature;
+    
+    public SignaturePacket() { }
+    
+    public SignaturePacket(String file, Delta.Signature signature) {
+        this.file = file;
+        this.signature = signature;
+    }
+
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        ByteHelper.writeString(file, buffer);
+        ByteHelper.writeInt(signature.blockSize, buffer);
+        ByteHelper.writeLong(signature.size, buffer);
+        ByteHelper.writeInt(signature.weak.length, buffer);
+        for(int weak : signature.weak)
+            ByteHelper.writeInt(weak, buffer);
+        buffer.appendAll(signature.strong);
+    }
+
+    @Override
+    public void deserialize(ByteBuffer buffer) {
+        file = ByteHelper.readString(0, buffer);
+        int index = file.length() + 1;
+        int blockSize = ByteHelper.readInt(index, buffer);
+        long size = ByteHelper.readLong(index + 4, buffer);
+        int[] weak = new int[ByteHelper.readInt(index + 12, buffer)];
+        index += 16;
+        for(int i = 0;i < weak.length;++ i, index += 4)
+            weak[i] = ByteHelper.readInt(index, buffer);
+        signature = new Delta.Signature(blockSize, size, weak, buffer.getRange(index, weak.length * 16));
+    }
+    
+    public static final class Handler implements PacketHandler<SignaturePacket> {
+        @Override
+        public Packet onMessage(SignaturePacket packet, NetSocket socket) {
+            InstanceHandler.client.signatureReceived(packet.file, packet.signature);
+            return null;
+        }
+    }
+}
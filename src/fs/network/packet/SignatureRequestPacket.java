@@ -0,0 +1,63 @@
+package fs.network.packet;
+
+import fs.common.Delta;
+import fs.common.InstanceHandler;
+import fs.common.Utils;
+import fs.server.Account;
+import fs.server.ChunkStore;
+import fs.server.Server;
+import io.vertx.core.net.NetSocket;
+import java.io.File;
+import stg.generic.ByteBuffer;
+import stg.generic.ByteHelper;
+
+// Asks for the signature of the stored copy of a file, which a delta upload of the file is diffed against
+public final class SignatureRequestPacket implements Packet {
+    private String file;
+    private int accountID;
+    
+    public SignatureRequestPacket() { }
+    
+    public SignatureRequestPacket(String file, int accountID) {
+        this.file = file;
+        this.accountID = accountID;
+    }
+
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        ByteHelper.writeString(file, buffer);
+        ByteHelper.writeInt(accountID, buffer);
+    }
+
+    @Override
+    public void deserialize(ByteBuffer buffer) {
+        file = ByteHelper.readString(0, buffer);
+        accountID = ByteHelper.readInt(file.length() + 1, buffer);
+    }
+    
+    public static final class Handler implements PacketHandler<SignatureRequestPacket> {
+        @Override
+        public Packet onMessage(SignatureRequestPacket packet, NetSocket socket) {
+            File file = new File(Utils.combinePathElements(InstanceHandler.config.getString("fileStorageDir"), packet.file));
+            Server server = InstanceHandler.server;
+            // the account the connection logged in as, rather than the ID the client claims
+            Account sender = InstanceHandler.NETWORK_HANDLER.getConnection(socket).getAccount();
+            // without a copy the sender may overwrite there is nothing to diff against, so the whole file is sent
+            if(sender == null || !file.isFile() || !server.checkDelete(file, sender.username))
+                return new SignaturePacket(packet.file, Delta.Signature.EMPTY);
+            Utils.VERTX.<Delta.Signature>executeBlocking(future -> {
+                try(ChunkStore.StoredFile stored = server.getChunkStore().open(file)) {
+                    future.complete(Delta.signature(stored::read, stored.size()));
+                }catch(Exception ex) {
+                    future.fail(ex);
+                }
+            }, false, result -> {
+                if(result.failed())
+                    Utils.logError(result.cause());
+                InstanceHandler.NETWORK_HANDLER.sendPacket(new SignaturePacket(packet.file,
+                        result.succeeded() ? result.result() : Delta.Signature.EMPTY), socket);
+            });
+            return null;
+        }
+    }
+}
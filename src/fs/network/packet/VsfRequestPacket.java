@@ -32,16 +32,18 @@ public final class VsfRequestPacket implements Packet {
         public Packet onMessage(VsfRequestPacket packet, NetSocket socket) {
             StringBuilder sb = new StringBuilder();
             Account account = InstanceHandler.server.getAccount(packet.accountID);
-            if(!account.data.containsKey("sfs") || account.data.getTagList("sfs").size() == 0)
-                return new InfoLogPacket("No files have been shared with you.");
-            sb.append('\n');
-            for(int i = 0;i < account.data.getTagList("sfs").size();++ i) {
-                NbtTagCompound sf = account.data.getTagList("sfs").getTagCompound(i);
-                sb.append('\"').append(sf.getString("filename")).append("\" from ").append(sf.getString("sender"));
-                if(i != account.data.getTagList("sfs").size() - 1) sb.append('\n');
+            synchronized(account.data) {
+                if(!account.data.containsKey("sfs") || account.data.getTagList("sfs").size() == 0)
+                    return new InfoLogPacket("No files have been shared with you.");
+                sb.append('\n');
+                for(int i = 0;i < account.data.getTagList("sfs").size();++ i) {
+                    NbtTagCompound sf = account.data.getTagList("sfs").getTagCompound(i);
+                    sb.append('\"').append(sf.getString("filename")).append("\" from ").append(sf.getString("sender"));
+                    if(i != account.data.getTagList("sfs").size() - 1) sb.append('\n');
+                }
+                account.data.setTag("sfs", new NbtTagList());
+                InstanceHandler.server.saveAccountData(account);
             }
-            account.data.setTag("sfs", new NbtTagList());
-            InstanceHandler.server.saveAccountData(account);
             return new InfoLogPacket(sb.toString());
         }
     }
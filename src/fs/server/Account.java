@@ -13,12 +13,12 @@ public final class Account {
     public final String username;
     public final byte[] passwordHash;
     public final NbtTagCompound data;
+    // Tells the account apart from others which were registered under the same name and deleted before it was
+    // created. Kept in the data, and 0 for accounts which predate it.
+    public final int incarnation;
     
     public Account(NbtTagCompound data) {
-        this.id = data.getInteger("id");
-        this.username = data.getString("username");
-        this.passwordHash = data.getByteArray("password");
-        this.data = data.getTagCompound("data");
+        this(data.getInteger("id"), data.getString("username"), data.getByteArray("password"), data.getTagCompound("data"));
     }
     
     private Account(int id, String username, byte[] passwordHash, NbtTagCompound data) {
@@ -26,6 +26,7 @@ public final class Account {
         this.username = username;
         this.passwordHash = passwordHash;
         this.data = data;
+        this.incarnation = data.containsKey("incarnation") ? data.getInteger("incarnation") : 0;
     }
     
     public void serialize(ByteBuffer buffer) {
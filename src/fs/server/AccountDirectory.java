@@ -0,0 +1,178 @@
+package fs.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import stg.generic.ByteBuffer;
+import stg.nbt.NbtTagCompound;
+import stg.nbt.NbtTagList;
+
+// The accounts by ID and by (case folded) username. Each account is wrapped once, and the same Account is handed out
+// for it from then on. An account's ID is its position in the directory.
+//
+// Accounts of the MetadataSnapshot the server started from are only decoded once they're looked up, until one of them
+// is removed: the IDs after it shift down by one, so from then on every account is held in memory.
+//
+// Incarnations (see Account) are handed out by a counter which only ever grows. It's kept in the snapshot, and whatever
+// was handed out since is in the journaled accounts and removals it's restored from.
+final class AccountDirectory {
+    // null once every account has been decoded
+    private MetadataSnapshot base;
+    // the slots of accounts of the base which haven't been decoded yet are null
+    private final List<Account> byID;
+    // accounts which have been decoded or added, the base is searched for the others
+    private final Map<String, Account> byName;
+    private int lastIncarnation;
+    
+    AccountDirectory(MetadataSnapshot base) {
+        this.base = base;
+        this.lastIncarnation = base == null ? 0 : base.lastIncarnation();
+        this.byID = new ArrayList<>(Collections.<Account>nCopies(base == null ? 0 : base.accountCount(), null));
+        this.byName = new HashMap<>();
+    }
+    
+    // the accounts of caches.nbt, which they were kept in before there were snapshots
+    AccountDirectory(NbtTagList legacy) {
+        this((MetadataSnapshot)null);
+        for(int i = 0;i < legacy.size();++ i)
+            add(legacy.getTagCompound(i));
+    }
+    
+    // null if there's no account with that ID
+    synchronized Account get(int id) {
+        if(id < 0 || id >= byID.size()) return null;
+        Account account = byID.get(id);
+        if(account == null) {
+            account = base.account(id);
+            byID.set(id, account);
+            // the first account registered under a name wins, as it did when they were looked up by scanning a list
+            byName.putIfAbsent(account.username.toLowerCase(), account);
+        }
+        return account;
+    }
+    
+    synchronized Account get(String username) {
+        Account account = byName.get(username.toLowerCase());
+        if(account != null || base == null)
+            return account;
+        return get(base.accountID(username));
+    }
+    
+    synchronized List<Account> all() {
+        decodeAll();
+        return Collections.unmodifiableList(new ArrayList<>(byID));
+    }
+    
+    // a newly registered account, of an incarnation of its own
+    synchronized Account create(NbtTagCompound nbt) {
+        if(!nbt.containsKey("data"))
+            nbt.setTag("data", new NbtTagCompound());
+        // never 0, which is left to accounts from before there were incarnations
+        nbt.getTagCompound("data").setInteger("incarnation", ++ lastIncarnation);
+        return add(nbt);
+    }
+    
+    synchronized Account add(NbtTagCompound nbt) {
+        nbt.setInteger("id", byID.size());
+        if(!nbt.containsKey("data"))
+            nbt.setTag("data", new NbtTagCompound());
+        Account account = new Account(nbt);
+        lastIncarnation = Math.max(lastIncarnation, account.incarnation);
+        String name = account.username.toLowerCase();
+        boolean taken = get(name) != null;
+        byID.add(account);
+        if(!taken)
+            byName.put(name, account);
+        return account;
+    }
+    
+    // An account as it was journaled. It's matched up by username, since IDs shift when accounts are deleted, and
+    // dropped if it's of an incarnation which has since been deleted and replaced.
+    synchronized void restore(Account account) {
+        lastIncarnation = Math.max(lastIncarnation, account.incarnation);
+        NbtTagCompound nbt = account.toTagCompound();
+        Account existing = get(account.username);
+        if(existing == null) {
+            add(nbt);
+            return;
+        }
+        if(existing.incarnation != account.incarnation)
+            return;
+        nbt.setInteger("id", existing.id);
+        Account restored = new Account(nbt);
+        byID.set(existing.id, restored);
+        byName.replace(existing.username.toLowerCase(), existing, restored);
+    }
+    
+    // The removed account, null if there's no account with that username
+    synchronized Account remove(String username) {
+        Account account = get(username);
+        if(account != null)
+            remove(account);
+        return account;
+    }
+    
+    // Only removes the account if it's still the incarnation which was removed, rather than one registered again since
+    synchronized void remove(String username, int incarnation) {
+        lastIncarnation = Math.max(lastIncarnation, incarnation);
+        Account account = get(username);
+        if(account != null && account.incarnation == incarnation)
+            remove(account);
+    }
+    
+    // The IDs of the accounts after it shift down by one, so they're wrapped again
+    private void remove(Account account) {
+        decodeAll();
+        byID.remove(account.id);
+        byName.remove(account.username.toLowerCase(), account);
+        for(int i = account.id;i < byID.size();++ i) {
+            Account shifted = byID.get(i);
+            NbtTagCompound nbt = shifted.toTagCompound();
+            nbt.setInteger("id", i);
+            Account renumbered = new Account(nbt);
+            byID.set(i, renumbered);
+            byName.replace(shifted.username.toLowerCase(), shifted, renumbered);
+        }
+    }
+    
+    // Moves onto the snapshot the directory was just written to, so the old one is no longer mapped. Accounts which
+    // haven't been decoded have the same IDs in both, since removing one since would have decoded all of them.
+    synchronized void rebase(MetadataSnapshot snapshot) {
+        if(base != null)
+            base = snapshot;
+    }
+    
+    // Accounts which were never decoded are copied over as they are
+    void writeTo(MetadataSnapshot.Writer writer) throws IOException {
+        List<Account> accounts;
+        MetadataSnapshot base;
+        synchronized(this) {
+            accounts = new ArrayList<>(byID);
+            base = this.base;
+            writer.lastIncarnation(lastIncarnation);
+        }
+        for(int id = 0;id < accounts.size();++ id) {
+            Account account = accounts.get(id);
+            if(account == null) {
+                writer.account(base.accountRecord(id), base.username(id));
+                continue;
+            }
+            ByteBuffer record = new ByteBuffer();
+            // whatever changes an account's data holds the compound's lock while doing so
+            synchronized(account.data) {
+                account.serialize(record);
+            }
+            writer.account(record.toArray(), account.username);
+        }
+    }
+    
+    private void decodeAll() {
+        if(base == null) return;
+        for(int id = 0;id < byID.size();++ id)
+            get(id);
+        base = null;
+    }
+}
@@ -0,0 +1,480 @@
+package fs.server;
+
+import fs.common.Delta;
+import fs.common.FileBundle;
+import fs.common.Security;
+import fs.common.Utils;
+import fs.network.NetworkHandler;
+import fs.network.ftp.AsyncFileFragmentAggregator;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+// Content addressed storage. Uploaded files are split into fixed size chunks named after their SHA-256, each unique
+// chunk is stored once, and the file under fileStorageDir is replaced by a manifest listing its chunks. Reference
+// counts aren't persisted, they are rebuilt from the manifests on startup, which also sweeps up chunks orphaned by a
+// crash.
+//
+// Replacing a stored file releases the chunks of its old manifest, so whatever replaces or deletes a stored file holds
+// the lock on its path (see lock) while doing so, or two of them would both release the same manifest. Readers hold a
+// reference to the chunks of the manifest they read for as long as they read them (see pin), so a file which is
+// replaced or deleted mid-download keeps its chunks until the download is done.
+public final class ChunkStore {
+    // a multiple of the fragment size, so the fragments of a chunk the server already has can be skipped as a whole
+    public static final int CHUNK_SIZE = 16 * (int)NetworkHandler.MAX_FTP_PACKET_SIZE;
+    private static final long MANIFEST_MAGIC = 0x4653434D414E4946L; // FSCMANIF
+    // magic, file size, chunk size, chunk count
+    private static final int MANIFEST_HEADER_SIZE = 24;
+    private final File chunkDir;
+    private final Map<String, Integer> refCounts;
+    // the stored files being replaced or deleted
+    private final Set<Path> locked;
+    
+    public ChunkStore(File chunkDir, File fileStorageDir) throws IOException {
+        this.chunkDir = chunkDir;
+        this.refCounts = new HashMap<>();
+        this.locked = new HashSet<>();
+        if(!chunkDir.exists())
+            chunkDir.mkdirs();
+        try(Stream<Path> files = Files.walk(fileStorageDir.toPath())) {
+            files.map(Path::toFile).map(ChunkStore::readManifest).filter(m -> m != null).forEach(m -> {
+                for(String hash : m.hashes) refCounts.merge(hash, 1, Integer::sum);
+            });
+        }
+        try(Stream<Path> chunks = Files.walk(chunkDir.toPath())) {
+            chunks.map(Path::toFile).filter(File::isFile).filter(f -> !refCounts.containsKey(f.getName())).forEach(File::delete);
+        }
+    }
+    
+    public synchronized boolean contains(String hash) {
+        return refCounts.containsKey(hash);
+    }
+    
+    // Waits for whatever else is replacing or deleting the stored file to finish. Blocks, so it's only taken off the
+    // event loop.
+    public void lock(File target) throws IOException {
+        Path path = target.toPath().toAbsolutePath().normalize();
+        synchronized(locked) {
+            try {
+                while(!locked.add(path))
+                    locked.wait();
+            }catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting to store " + target.getName() + ".");
+            }
+        }
+    }
+    
+    public void unlock(File target) {
+        synchronized(locked) {
+            locked.remove(target.toPath().toAbsolutePath().normalize());
+            locked.notifyAll();
+        }
+    }
+    
+    // Deletes a stored file and releases its chunks
+    public void delete(File target) throws IOException {
+        lock(target);
+        try {
+            Manifest manifest = readManifest(target);
+            target.delete();
+            if(manifest != null)
+                release(manifest);
+        }finally {
+            unlock(target);
+        }
+    }
+    
+    // Turns the staging file of a finished upload into chunks and writes its manifest to the target, releasing
+    // whatever the target held before. Chunks which were skipped during the upload (see
+    // AsyncFileFragmentAggregator.getPrefilledChunks) are taken from the hashes the client sent, the rest are hashed
+    // here. Blocks, so it's run off the event loop.
+    public void ingest(AsyncFileFragmentAggregator collector, File target) throws IOException {
+        if(collector.failed()) {
+            collector.discard();
+            throw new IOException("Failed to write " + target.getName() + " to the staging file.");
+        }
+        String[] claimed = collector.getStreamData().containsKey("chunks") ? collector.getStreamData().getStringArray("chunks") : null;
+        lock(target);
+        try {
+            ingest(collector.getStagingFile(), claimed, collector.getPrefilledChunks(), target);
+        }finally {
+            unlock(target);
+            collector.discard();
+        }
+    }
+    
+    // Rebuilds an upload sent as a delta against the currently stored copy of the target (see Delta), then stores it
+    public void ingestDelta(AsyncFileFragmentAggregator collector, File target, String expectedHash) throws IOException {
+        ingestConverted(collector, target, (staging, out) -> {
+            try(StoredFile base = open(target)) {
+                Delta.patch(staging, base::read, base.size(), out, expectedHash);
+            }
+        });
+    }
+    
+    // Stores the files of a bundle (see FileBundle) as a zip of them
+    public void ingestZip(AsyncFileFragmentAggregator collector, File target, FileBundle bundle) throws IOException {
+        ingestConverted(collector, target, bundle::zip);
+    }
+    
+    // for uploads which aren't stored as they were sent
+    private void ingestConverted(AsyncFileFragmentAggregator collector, File target, Converter converter) throws IOException {
+        File converted = null;
+        try {
+            if(collector.failed())
+                throw new IOException("Failed to write " + target.getName() + " to the staging file.");
+            converted = tempFile("converted");
+            // a delta is applied to the stored copy, which mustn't change underneath it
+            lock(target);
+            try {
+                converter.convert(collector.getStagingFile(), converted);
+                ingest(converted, null, new BitSet(), target);
+            }finally {
+                unlock(target);
+            }
+        }finally {
+            collector.discard();
+            if(converted != null)
+                converted.delete();
+        }
+    }
+    
+    // Stores each file of a bundle (see FileBundle) under its target, skipping those without one, in a single pass over
+    // the staging file. A file which fails to be stored doesn't stop the rest, the targets of those which failed are
+    // returned.
+    public List<File> ingestBundle(AsyncFileFragmentAggregator collector, FileBundle bundle, File[] targets) throws IOException {
+        List<File> failed = new ArrayList<>();
+        try {
+            if(collector.failed() || collector.getStagingFile().length() != bundle.totalSize())
+                throw new IOException("Failed to receive the batch " + collector.getName() + ".");
+            byte[] chunk = new byte[CHUNK_SIZE];
+            try(RandomAccessFile in = new RandomAccessFile(collector.getStagingFile(), "r")) {
+                for(int i = 0;i < bundle.size();++ i) {
+                    if(targets[i] == null) continue;
+                    try {
+                        lock(targets[i]);
+                        try {
+                            ingest(in, bundle.getOffset(i), bundle.getSize(i), null, new BitSet(), targets[i], chunk);
+                        }finally {
+                            unlock(targets[i]);
+                        }
+                    }catch(IOException ex) {
+                        Utils.log("Failed to store " + targets[i].getName() + ".");
+                        Utils.logError(ex);
+                        failed.add(targets[i]);
+                    }
+                }
+            }
+        }finally {
+            collector.discard();
+        }
+        return failed;
+    }
+    
+    private void ingest(File staging, String[] claimed, BitSet prefilled, File target) throws IOException {
+        try(RandomAccessFile in = new RandomAccessFile(staging, "r")) {
+            ingest(in, 0L, staging.length(), claimed, prefilled, target, new byte[CHUNK_SIZE]);
+        }
+    }
+    
+    // Stores the `size` bytes of the staging file at `offset` as the target, which the caller has locked. The chunks
+    // taken are given back if it fails.
+    private void ingest(RandomAccessFile in, long offset, long size, String[] claimed, BitSet prefilled, File target, byte[] chunk)
+            throws IOException {
+        int count = chunkCount(size);
+        String[] hashes = new String[count];
+        try {
+            for(int i = 0;i < count;++ i) {
+                int len = (int)Math.min(CHUNK_SIZE, size - (long)i * CHUNK_SIZE);
+                if(prefilled.get(i)) {
+                    if(!acquire(claimed[i]))
+                        throw new IOException("A chunk of " + target.getName() + " was deleted during the upload.");
+                    hashes[i] = claimed[i];
+                    continue;
+                }
+                in.seek(offset + (long)i * CHUNK_SIZE);
+                in.readFully(chunk, 0, len);
+                String hash = hash(chunk, len);
+                store(hash, chunk, len);
+                hashes[i] = hash;
+            }
+            writeManifest(target, size, hashes);
+        }catch(IOException ex) {
+            // the chunks are taken in order, up to the one which failed
+            int acquired = 0;
+            while(acquired < count && hashes[acquired] != null)
+                ++ acquired;
+            release(Arrays.copyOf(hashes, acquired));
+            throw ex;
+        }
+    }
+    
+    // replaces the target with a manifest of the chunks, releasing those of the manifest it replaces
+    private void writeManifest(File target, long size, String[] hashes) throws IOException {
+        int count = hashes.length;
+        Manifest previous = readManifest(target);
+        File tmp = tempFile("manifest");
+        try {
+            try(DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+                out.writeLong(MANIFEST_MAGIC);
+                out.writeLong(size);
+                out.writeInt(CHUNK_SIZE);
+                out.writeInt(count);
+                for(String hash : hashes)
+                    out.write(hexToBytes(hash));
+            }
+            try {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }catch(AtomicMoveNotSupportedException ex) {
+                // chunkDir is on another file system than the stored files
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }catch(IOException ex) {
+            tmp.delete();
+            throw ex;
+        }
+        if(previous != null)
+            release(previous);
+    }
+    
+    // called when a stored file is deleted or overwritten
+    public void release(Manifest manifest) {
+        release(manifest.hashes);
+    }
+    
+    // Reads the manifest of a stored file and takes a reference to each of its chunks, which is given back by unpin.
+    // Null if the file isn't a manifest.
+    public Manifest pin(File file) throws IOException {
+        // the file can be replaced, and its old chunks dropped, between reading the manifest and pinning them
+        for(int attempt = 0;attempt < 3;++ attempt) {
+            Manifest manifest = readManifest(file);
+            if(manifest == null || acquireAll(manifest.hashes))
+                return manifest;
+        }
+        throw new IOException(file.getName() + " kept being replaced while it was opened.");
+    }
+    
+    public void unpin(Manifest manifest) {
+        release(manifest.hashes);
+    }
+    
+    private synchronized void release(String[] hashes) {
+        for(String hash : hashes) {
+            Integer count = refCounts.get(hash);
+            if(count == null) continue;
+            if(count > 1)
+                refCounts.put(hash, count - 1);
+            else{
+                refCounts.remove(hash);
+                chunkFile(hash).delete();
+            }
+        }
+    }
+    
+    // The chunks of the file are pinned until the StoredFile is closed
+    public StoredFile open(File file) throws IOException {
+        return new StoredFile(file, pin(file));
+    }
+    
+    public File chunkFile(String hash) {
+        return new File(new File(chunkDir, hash.substring(0, 2)), hash);
+    }
+    
+    private synchronized boolean acquire(String hash) {
+        if(!refCounts.containsKey(hash)) return false;
+        refCounts.merge(hash, 1, Integer::sum);
+        return true;
+    }
+    
+    // all of them or none
+    private synchronized boolean acquireAll(String[] hashes) {
+        for(String hash : hashes) {
+            if(!refCounts.containsKey(hash)) return false;
+        }
+        for(String hash : hashes)
+            refCounts.merge(hash, 1, Integer::sum);
+        return true;
+    }
+    
+    // The chunk is written to a file of its own without holding the lock, so storing one chunk doesn't hold up every
+    // other upload and release. Only the rename into place is done under the lock, since a chunk with no references is
+    // deleted under it as well.
+    private void store(String hash, byte[] chunk, int len) throws IOException {
+        if(acquire(hash)) return;
+        File file = chunkFile(hash);
+        file.getParentFile().mkdirs();
+        File tmp = Files.createTempFile(file.getParentFile().toPath(), hash, ".tmp").toFile();
+        try {
+            try(FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(chunk, 0, len);
+            }
+            synchronized(this) {
+                // another upload may have stored the same chunk in the meantime
+                if(acquire(hash)) return;
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                refCounts.put(hash, 1);
+            }
+        }finally {
+            tmp.delete();
+        }
+    }
+    
+    // Scratch files are kept out of fileStorageDir, where they could clash with a stored file, and are swept up on
+    // startup along with orphaned chunks if they're left behind
+    private File tempFile(String prefix) throws IOException {
+        return Files.createTempFile(chunkDir.toPath(), prefix, ".tmp").toFile();
+    }
+    
+    public static int chunkCount(long size) {
+        return (int)((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+    
+    // The hashes of a file's chunks, which the client sends along with an upload so the chunks it shares with the copy
+    // it replaces don't have to be sent again
+    public static String[] hashChunks(File file) throws IOException {
+        String[] hashes = new String[chunkCount(file.length())];
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try(InputStream in = new FileInputStream(file)) {
+            for(int i = 0;i < hashes.length;++ i) {
+                int len = 0, read;
+                while(len < CHUNK_SIZE && (read = in.read(chunk, len, CHUNK_SIZE - len)) > 0)
+                    len += read;
+                hashes[i] = hash(chunk, len);
+            }
+        }
+        return hashes;
+    }
+    
+    // Null if the file isn't a manifest (files stored before chunking was introduced are left as they are)
+    public static Manifest readManifest(File file) {
+        if(!file.isFile() || file.length() < MANIFEST_HEADER_SIZE) return null;
+        try(DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if(in.readLong() != MANIFEST_MAGIC) return null;
+            long size = in.readLong();
+            int chunkSize = in.readInt();
+            int count = in.readInt();
+            if(chunkSize != CHUNK_SIZE || file.length() != MANIFEST_HEADER_SIZE + 32L * count) return null;
+            String[] hashes = new String[count];
+            byte[] hash = new byte[32];
+            for(int i = 0;i < count;++ i) {
+                in.readFully(hash);
+                hashes[i] = Security.toHex(hash);
+            }
+            return new Manifest(size, hashes);
+        }catch(IOException ex) {
+            Utils.logError(ex);
+            return null;
+        }
+    }
+    
+    // the size of the stored file, whether or not it's a manifest
+    public static long sizeOf(File file) {
+        Manifest manifest = readManifest(file);
+        return manifest == null ? file.length() : manifest.size;
+    }
+    
+    private static String hash(byte[] chunk, int len) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(chunk, 0, len);
+            return Security.toHex(sha256.digest());
+        }catch(NoSuchAlgorithmException ex) {
+            throw new InternalError(ex);
+        }
+    }
+    
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for(int i = 0;i < bytes.length;++ i)
+            bytes[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        return bytes;
+    }
+    
+    // Random access to a stored file, whether or not it's a manifest. The chunks it reads from are pinned until it's closed.
+    public final class StoredFile implements Closeable {
+        private final File file;
+        private final Manifest manifest;
+        private RandomAccessFile source;
+        private int openChunk;
+    
+        StoredFile(File file, Manifest manifest) {
+            this.file = file;
+            this.manifest = manifest;
+            this.source = null;
+            this.openChunk = -1;
+        }
+    
+        public long size() {
+            return manifest == null ? file.length() : manifest.size;
+        }
+    
+        public void read(long position, byte[] buf, int off, int len) throws IOException {
+            while(len > 0) {
+                int n = len;
+                if(manifest == null) {
+                    if(source == null)
+                        source = new RandomAccessFile(file, "r");
+                    source.seek(position);
+                }else{
+                    int chunk = (int)(position / CHUNK_SIZE);
+                    if(chunk != openChunk) {
+                        if(source != null) source.close();
+                        source = new RandomAccessFile(chunkFile(manifest.hashes[chunk]), "r");
+                        openChunk = chunk;
+                    }
+                    source.seek(position % CHUNK_SIZE);
+                    n = (int)Math.min(len, CHUNK_SIZE - position % CHUNK_SIZE);
+                }
+                source.readFully(buf, off, n);
+                position += n;
+                off += n;
+                len -= n;
+            }
+        }
+    
+        @Override
+        public void close() throws IOException {
+            if(manifest != null)
+                unpin(manifest);
+            if(source != null) source.close();
+        }
+    }
+    
+    @FunctionalInterface
+    private interface Converter {
+        void convert(File staging, File out) throws IOException;
+    }
+    
+    public static final class Manifest {
+        public final long size;
+        public final String[] hashes;
+    
+        Manifest(long size, String[] hashes) {
+            this.size = size;
+            this.hashes = hashes;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package fs.server;
+
+import fs.common.InstanceHandler;
+import fs.common.Utils;
+import fs.network.ftp.FileStreamSender;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Small files which are downloaded over and over are kept in memory, cut into the fragments they're sent as along with
+// the CRC32 of each, so serving them again costs neither a file open, a read nor a checksum. The contents live in
+// direct buffers outside the heap, and the cache is bounded by their total size, evicting the least recently used
+// files first. Entries are invalidated whenever an upload or delete touches their path, and are also checked against
+// the stored file's size and modification time on every lookup.
+public final class FileCache {
+    private final long capacity;
+    private final long maxFileSize;
+    // by absolute path, least recently used first
+    private final LinkedHashMap<String, Entry> entries;
+    // The generation and number of loads in flight of each path being loaded. Invalidating a path bumps its generation,
+    // and a load which started under an older one isn't cached.
+    private final Map<String, long[]> loads;
+    private long used;
+    private long hits, misses, evictions;
+    
+    public FileCache(long capacity, long maxFileSize) {
+        this.capacity = capacity;
+        // entries are held in a single buffer each
+        this.maxFileSize = Math.min(Math.min(maxFileSize, capacity), Integer.MAX_VALUE);
+        this.entries = new LinkedHashMap<>(16, 0.75F, true);
+        this.loads = new HashMap<>();
+        this.used = 0L;
+        this.hits = this.misses = this.evictions = 0L;
+    }
+    
+    // whether a stored file of that size is served through the cache
+    public boolean accepts(long size) {
+        return maxFileSize > 0 && size <= maxFileSize;
+    }
+    
+    // Hands over the cached fragments of the file, loading it first on a miss. Loading is kept off the event loop.
+    public void get(File file, int fragmentSize, Handler<AsyncResult<Entry>> handler) {
+        String key = file.getAbsolutePath();
+        long lastModified = file.lastModified(), diskSize = file.length();
+        Entry hit;
+        long generation = 0L;
+        synchronized(this) {
+            hit = lookup(key, fragmentSize, lastModified, diskSize);
+            if(hit == null) {
+                long[] load = loads.computeIfAbsent(key, unused -> new long[2]);
+                generation = load[0];
+                ++ load[1];
+            }
+        }
+        if(hit != null) {
+            handler.handle(Future.succeededFuture(hit));
+            return;
+        }
+        long started = generation;
+        Utils.VERTX.<Entry>executeBlocking(future -> {
+            try {
+                future.complete(load(file, fragmentSize, lastModified, diskSize));
+            }catch(IOException ex) {
+                future.fail(ex);
+            }
+        }, false, result -> {
+            loaded(key, started, result.succeeded() ? result.result() : null);
+            handler.handle(result);
+        });
+    }
+    
+    private Entry lookup(String key, int fragmentSize, long lastModified, long diskSize) {
+        Entry entry = entries.get(key);
+        if(entry != null && entry.fragmentSize == fragmentSize && entry.lastModified == lastModified && entry.diskSize == diskSize) {
+            ++ hits;
+            return entry;
+        }
+        if(entry != null)
+            remove(key);
+        ++ misses;
+        return null;
+    }
+    
+    // The entry is only cached if the path wasn't invalidated while it was being loaded, it could be of the file which
+    // was replaced. Null if the load failed.
+    private synchronized void loaded(String key, long generation, Entry entry) {
+        long[] load = loads.get(key);
+        if(entry != null && load[0] == generation)
+            put(key, entry);
+        if(-- load[1] == 0)
+            loads.remove(key);
+    }
+    
+    public synchronized void invalidate(File file) {
+        String key = file.getAbsolutePath();
+        remove(key);
+        long[] load = loads.get(key);
+        if(load != null)
+            ++ load[0];
+    }
+    
+    public synchronized String stats() {
+        long lookups = hits + misses;
+        return entries.size() + " files cached, " + (used >> 10) + " of " + (capacity >> 10) + " KiB used. " + hits + " hits, "
+                + misses + " misses (" + (lookups == 0 ? 0 : hits * 100 / lookups) + "% hit rate), " + evictions + " evictions.";
+    }
+    
+    private Entry load(File file, int fragmentSize, long lastModified, long diskSize) throws IOException {
+        try(ChunkStore.StoredFile stored = InstanceHandler.server.getChunkStore().open(file)) {
+            int size = (int)stored.size();
+            ByteBuffer data = ByteBuffer.allocateDirect(size);
+            byte[] buf = new byte[fragmentSize];
+            int[] crcs = new int[Math.max(1, (size + fragmentSize - 1) / fragmentSize)];
+            CRC32 crc = new CRC32();
+            for(int i = 0;i < crcs.length;++ i) {
+                int len = Math.min(fragmentSize, size - i * fragmentSize);
+                stored.read((long)i * fragmentSize, buf, 0, len);
+                data.put(buf, 0, len);
+                crc.reset();
+                crc.update(buf, 0, len);
+                crcs[i] = (int)crc.getValue();
+            }
+            data.flip();
+            return new Entry(data, fragmentSize, crcs, FileStreamSender.fingerprint(file), lastModified, diskSize);
+        }
+    }
+    
+    private void put(String key, Entry entry) {
+        // a concurrent miss on the same file may have loaded it as well
+        remove(key);
+        entries.put(key, entry);
+        used += entry.size();
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while(used > capacity && eldest.hasNext()) {
+            Entry evicted = eldest.next().getValue();
+            eldest.remove();
+            used -= evicted.size();
+            ++ evictions;
+        }
+    }
+    
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if(entry != null)
+            used -= entry.size();
+    }
+    
+    // Entries are never modified once loaded, so senders can keep reading an entry which has since been evicted; its
+    // memory is reclaimed once the last of them is done with it.
+    public static final class Entry {
+        private final ByteBuffer data;
+        private final int fragmentSize;
+        private final int[] crcs;
+        private final String fingerprint;
+        private final long lastModified;
+        private final long diskSize;
+    
+        Entry(ByteBuffer data, int fragmentSize, int[] crcs, String fingerprint, long lastModified, long diskSize) {
+            this.data = data;
+            this.fragmentSize = fragmentSize;
+            this.crcs = crcs;
+            this.fingerprint = fingerprint;
+            this.lastModified = lastModified;
+            this.diskSize = diskSize;
+        }
+    
+        public long size() {
+            return data.capacity();
+        }
+    
+        public int getFragmentSize() {
+            return fragmentSize;
+        }
+    
+        public String getFingerprint() {
+            return fingerprint;
+        }
+    
+        // the payload of a fragment, without a copy
+        public Buffer fragment(int section) {
+            ByteBuffer slice = data.duplicate();
+            slice.position(section * fragmentSize);
+            slice.limit(Math.min(data.capacity(), (section + 1) * fragmentSize));
+            return Buffer.buffer(Unpooled.wrappedBuffer(slice));
+        }
+    
+        public int crc(int section) {
+            return crcs[section];
+        }
+    }
+}
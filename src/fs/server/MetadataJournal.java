@@ -0,0 +1,395 @@
+package fs.server;
+
+import fs.common.Utils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import stg.generic.ByteBuffer;
+import stg.generic.ByteHelper;
+
+// The server's metadata is only written out in full (a MetadataSnapshot) when the journal is compacted, in
+// between every mutation is appended to the journal as a record of its own, so what a mutation costs doesn't grow with
+// the amount of metadata. On startup the records are replayed on top of the last snapshot. Records describe the state
+// they leave behind rather than a change to it, so replaying one which the snapshot already contains does no harm.
+// Removing an account is the exception, so removals name the incarnation of the account they removed (see Account),
+// and neither they nor older records of that account touch one which was registered under the same name since.
+//
+// Records are written by a thread of the journal's own with group commit: whatever has been appended while it waits
+// (for at most the configured delay, or until a batch is full) is written and synced to disk at once. Appending never
+// blocks, callers which need the change to be durable wait on the future it returns instead.
+//
+// Compaction swaps in a fresh journal before the snapshot is taken, and deletes the old one once the snapshot has been
+// written, so appending never waits on it.
+final class MetadataJournal {
+    private static final byte ACCOUNT = 0, ACCOUNT_REMOVED = 1, PENDING_ACCOUNTS = 2, PERMISSION = 3, PERMISSION_REMOVED = 4;
+    // the journal is compacted once it has grown this large
+    private static final long COMPACTION_SIZE = 4L << 20;
+    private final File file;
+    // the journal being compacted away, if any
+    private final File retired;
+    private final Snapshot snapshot;
+    private final long maxDelay;
+    private final int maxBatch;
+    private final BlockingQueue<Pending> queue;
+    private final Thread committer;
+    private FileOutputStream stream;
+    private DataOutputStream out;
+    // the length of what has been committed, which a failed batch is cut back to
+    private long size;
+    private boolean compacting;
+    // set if a failed batch couldn't be cut off again, after which nothing more is accepted
+    private volatile IOException broken;
+    // stops the committer once everything before it has been committed
+    private static final Pending CLOSE = new Pending(null);
+    
+    // What the records are replayed on, one method per kind of record
+    interface Target {
+        // an account was created or its data changed
+        void accountSaved(Account account);
+    
+        void accountRemoved(String username, int incarnation);
+    
+        void pendingAccounts(String[] usernames);
+    
+        void permissionSet(FilePermission fp);
+    
+        void permissionRemoved(File file);
+    }
+    
+    // writes the metadata out in full, and has synced it to disk when it returns
+    @FunctionalInterface
+    interface Snapshot {
+        void write() throws IOException;
+    }
+    
+    // maxDelay in milliseconds
+    MetadataJournal(File file, Snapshot snapshot, long maxDelay, int maxBatch) {
+        this.file = file;
+        this.retired = new File(file.getPath() + ".old");
+        this.snapshot = snapshot;
+        this.maxDelay = Math.max(0L, maxDelay);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.queue = new LinkedBlockingQueue<>();
+        this.committer = new Thread(this::commitLoop, "Metadata Journal");
+        this.committer.setDaemon(true);
+        this.compacting = false;
+    }
+    
+    // Replays whatever is left over from the last run on the target and carries on appending to the journal, so
+    // starting up doesn't take a snapshot. One left over from a compaction which didn't finish is compacted again.
+    void open(Target target) throws IOException {
+        boolean unfinished;
+        synchronized(this) {
+            replay(retired, target);
+            replay(file, target);
+            file.getParentFile().mkdirs();
+            startJournal(true);
+            committer.start();
+            unfinished = retired.exists();
+        }
+        if(unfinished)
+            compact();
+    }
+    
+    // The futures complete once the record is on disk
+    CompletableFuture<Void> accountSaved(Account account) {
+        ByteBuffer record = record(ACCOUNT);
+        account.serialize(record);
+        return append(record);
+    }
+    
+    CompletableFuture<Void> accountRemoved(Account account) {
+        ByteBuffer record = record(ACCOUNT_REMOVED);
+        ByteHelper.writeString(account.username, record);
+        ByteHelper.writeInt(account.incarnation, record);
+        return append(record);
+    }
+    
+    CompletableFuture<Void> pendingAccounts(String[] usernames) {
+        ByteBuffer record = record(PENDING_ACCOUNTS);
+        ByteHelper.writeInt(usernames.length, record);
+        for(String username : usernames)
+            ByteHelper.writeString(username, record);
+        return append(record);
+    }
+    
+    CompletableFuture<Void> permissionSet(FilePermission fp) {
+        ByteBuffer record = record(PERMISSION);
+        ByteHelper.writeString(fp.getFile().getAbsolutePath(), record);
+        ByteHelper.writeString(fp.getUploader(), record);
+        ByteHelper.writeInt(fp.getDownloaders().size(), record);
+        for(String downloader : fp.getDownloaders())
+            ByteHelper.writeString(downloader, record);
+        return append(record);
+    }
+    
+    CompletableFuture<Void> permissionRemoved(File file) {
+        ByteBuffer record = record(PERMISSION_REMOVED);
+        ByteHelper.writeString(file.getAbsolutePath(), record);
+        return append(record);
+    }
+    
+    // Retires the journal and snapshots the metadata, on the calling thread
+    void compact() throws IOException {
+        synchronized(this) {
+            if(compacting) return;
+            compacting = true;
+            // a journal left over from a compaction which failed is folded into this one
+            if(!retired.exists()) {
+                out.close();
+                Files.move(file.toPath(), retired.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                startJournal(false);
+            }
+        }
+        try {
+            snapshot.write();
+            retired.delete();
+        }finally {
+            synchronized(this) {
+                compacting = false;
+            }
+        }
+    }
+    
+    // Waits for whatever has been appended to be committed
+    void close() throws IOException {
+        if(committer.isAlive()) {
+            queue.add(CLOSE);
+            try {
+                committer.join();
+            }catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized(this) {
+            if(out != null)
+                out.close();
+        }
+    }
+    
+    private void startJournal(boolean append) throws IOException {
+        stream = new FileOutputStream(file, append);
+        out = new DataOutputStream(new BufferedOutputStream(stream));
+        size = append ? file.length() : 0L;
+    }
+    
+    // Cuts off whatever part of a failed batch reached the file, and drops what's still buffered, so the next batch
+    // isn't appended after a torn record. Replaying stops at a torn record, which would lose every record after it.
+    private void truncate(IOException cause) {
+        try {
+            // closing the buffered stream would flush the rest of the batch
+            stream.close();
+            try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(size);
+                raf.getFD().sync();
+            }
+            startJournal(true);
+        }catch(IOException ex) {
+            Utils.err("Failed to recover the metadata journal, no more changes will be saved until the server is restarted.");
+            Utils.logError(ex);
+            ex.addSuppressed(cause);
+            broken = ex;
+        }
+    }
+    
+    private static ByteBuffer record(byte type) {
+        ByteBuffer record = new ByteBuffer();
+        record.append(type);
+        return record;
+    }
+    
+    private CompletableFuture<Void> append(ByteBuffer record) {
+        IOException broken = this.broken;
+        if(broken != null) {
+            CompletableFuture<Void> refused = new CompletableFuture<>();
+            refused.completeExceptionally(broken);
+            return refused;
+        }
+        Pending pending = new Pending(record.toArray());
+        queue.add(pending);
+        return pending.committed;
+    }
+    
+    private void commitLoop() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        boolean closing = false;
+        while(!closing) {
+            try {
+                batch.add(queue.take());
+                // a batch is held open for more records until it's full or the first of them has waited long enough
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelay);
+                while(batch.size() < maxBatch && batch.get(batch.size() - 1) != CLOSE) {
+                    Pending next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if(next == null) break;
+                    batch.add(next);
+                }
+            }catch(InterruptedException ex) {
+                // committed what's been collected, then stops
+                closing = true;
+            }
+            if(!batch.isEmpty() && batch.get(batch.size() - 1) == CLOSE) {
+                batch.remove(batch.size() - 1);
+                closing = true;
+            }
+            commit(batch);
+            batch.clear();
+        }
+    }
+    
+    // Each record is framed by its length and followed by its CRC32, so that one torn by a crash is recognized. The
+    // whole batch is synced at once.
+    private void commit(List<Pending> batch) {
+        if(batch.isEmpty()) return;
+        boolean compact;
+        synchronized(this) {
+            try {
+                if(broken != null)
+                    throw broken;
+                long end = size;
+                CRC32 crc = new CRC32();
+                for(Pending pending : batch) {
+                    crc.reset();
+                    crc.update(pending.record);
+                    out.writeInt(pending.record.length);
+                    out.write(pending.record);
+                    out.writeInt((int)crc.getValue());
+                    end += pending.record.length + 8;
+                }
+                out.flush();
+                stream.getFD().sync();
+                size = end;
+            }catch(IOException ex) {
+                Utils.err("Failed to journal a change to the metadata.");
+                Utils.logError(ex);
+                batch.forEach(pending -> pending.committed.completeExceptionally(ex));
+                if(broken == null)
+                    truncate(ex);
+                return;
+            }
+            compact = size >= COMPACTION_SIZE && !compacting;
+        }
+        batch.forEach(pending -> pending.committed.complete(null));
+        if(compact) {
+            Utils.VERTX.<Void>executeBlocking(future -> {
+                try {
+                    compact();
+                    future.complete();
+                }catch(IOException ex) {
+                    future.fail(ex);
+                }
+            }, false, result -> {
+                if(result.failed()) {
+                    Utils.err("Failed to compact the metadata journal.");
+                    Utils.logError(result.cause());
+                }
+            });
+        }
+    }
+    
+    private static final class Pending {
+        final byte[] record;
+        final CompletableFuture<Void> committed;
+        
+        Pending(byte[] record) {
+            this.record = record;
+            this.committed = new CompletableFuture<>();
+        }
+    }
+    
+    private static void replay(File journal, Target target) throws IOException {
+        if(!journal.exists()) return;
+        List<ByteBuffer> records = new ArrayList<>();
+        long valid = 0L;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+            while(true) {
+                int length = in.readInt();
+                if(length < 0 || length > journal.length())
+                    break;
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if(in.readInt() != (int)crc.getValue())
+                    break;
+                records.add(new ByteBuffer(bytes));
+                valid += bytes.length + 8;
+            }
+        }catch(EOFException ex) {
+            // the end of the journal, or a record torn by a crash
+        }
+        if(valid < journal.length()) {
+            Utils.log("Dropping " + (journal.length() - valid) + " bytes torn off the end of " + journal.getName() + ".");
+            try(RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+                raf.setLength(valid);
+            }
+        }
+        for(ByteBuffer record : records)
+            apply(record, target);
+    }
+    
+    private static void apply(ByteBuffer record, Target target) {
+        int index = 1;
+        switch(record.get(0)) {
+            case ACCOUNT:
+                target.accountSaved(Account.deserialize(record, index));
+                break;
+            case ACCOUNT_REMOVED:
+            {
+                String username = ByteHelper.readString(index, record);
+                index += username.length() + 1;
+                // records written before accounts had incarnations end after the username
+                target.accountRemoved(username, record.size() > index ? ByteHelper.readInt(index, record) : 0);
+                break;
+            }
+            case PENDING_ACCOUNTS:
+            {
+                String[] usernames = new String[ByteHelper.readInt(index, record)];
+                index += 4;
+                for(int i = 0;i < usernames.length;++ i) {
+                    usernames[i] = ByteHelper.readString(index, record);
+                    index += usernames[i].length() + 1;
+                }
+                target.pendingAccounts(usernames);
+                break;
+            }
+            case PERMISSION:
+            {
+                String path = ByteHelper.readString(index, record);
+                index += path.length() + 1;
+                String uploader = ByteHelper.readString(index, record);
+                index += uploader.length() + 1;
+                int count = ByteHelper.readInt(index, record);
+                index += 4;
+                List<String> downloaders = new ArrayList<>(count);
+                for(int i = 0;i < count;++ i) {
+                    String downloader = ByteHelper.readString(index, record);
+                    index += downloader.length() + 1;
+                    downloaders.add(downloader);
+                }
+                target.permissionSet(new FilePermission(new File(path), downloaders, uploader));
+                break;
+            }
+            case PERMISSION_REMOVED:
+                target.permissionRemoved(new File(ByteHelper.readString(index, record)));
+                break;
+            default:
+                Utils.err("Skipping a metadata record of unknown type " + record.get(0) + ".");
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package fs.server;
+
+import fs.common.Utils;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import stg.generic.ByteBuffer;
+import stg.generic.ByteHelper;
+
+// The server's metadata as of the last compaction of the MetadataJournal. The file is mapped rather than read, and is
+// laid out as records followed by offset indexes, so opening it costs nothing however large it is: a record is only
+// decoded when it's first looked up, and what's never looked up stays in the page cache rather than on the heap.
+//
+// header | records | pending accounts | accounts by ID | account IDs by username | permissions by key
+//
+// Account records are those of Account.serialize, permission records start with the key they're sorted by (see
+// PermissionIndex). Index entries are the offset (long) and length (int) of a record, the username index is of IDs. A
+// single mapping reaches 2 GiB, which is far more metadata than the NBT files it replaces could have held in memory.
+//
+// Each compaction writes a snapshot of the next generation (metadata.snapshot.N) rather than replacing the last one,
+// which is still mapped until whatever was decoding from it has been rebased on the new one. A mapped file can't be
+// replaced or deleted on every platform, so older generations are deleted whenever they can be.
+final class MetadataSnapshot {
+    private static final String NAME = "metadata.snapshot";
+    private static final long MAGIC = 0x4653534E41505331L;
+    private static final int VERSION = 2;
+    // magic, version, account count, permission count, the offsets of the pending accounts and the three indexes, then
+    // the last incarnation handed out (see AccountDirectory), which version 1 didn't have
+    private static final int HEADER_SIZE = 8 + 4 + 4 + 4 + 8 * 4 + 4;
+    private static final int INDEX_ENTRY_SIZE = 12;
+    private final MappedByteBuffer map;
+    private final int accountCount;
+    private final int permissionCount;
+    private final long pendingOffset, accountIndex, nameIndex, permissionIndex;
+    private final int lastIncarnation;
+    
+    private MetadataSnapshot(MappedByteBuffer map) throws IOException {
+        this.map = map;
+        int version = map.capacity() < HEADER_SIZE - 4 || map.getLong(0) != MAGIC ? -1 : map.getInt(8);
+        if(version != 1 && version != VERSION)
+            throw new IOException("Not a metadata snapshot, or one of an unknown version.");
+        this.accountCount = map.getInt(12);
+        this.permissionCount = map.getInt(16);
+        this.pendingOffset = map.getLong(20);
+        this.accountIndex = map.getLong(28);
+        this.nameIndex = map.getLong(36);
+        this.permissionIndex = map.getLong(44);
+        this.lastIncarnation = version == 1 ? highestIncarnation() : map.getInt(52);
+    }
+    
+    // Null if there's no snapshot yet
+    static MetadataSnapshot open(File file) throws IOException {
+        if(!file.isFile()) return null;
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // the mapping outlives the channel
+            return new MetadataSnapshot(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0L, raf.length()));
+        }
+    }
+    
+    // The snapshot of the highest generation in the directory, which doesn't exist if there's no snapshot yet. The one
+    // of generation 0 is named without a number, as it was before there were generations.
+    static File latest(File dir) {
+        File latest = new File(dir, NAME);
+        File[] files = dir.listFiles();
+        if(files != null)
+            for(File file : files)
+                if(generation(file) > generation(latest))
+                    latest = file;
+        return latest;
+    }
+    
+    static File next(File snapshot) {
+        return new File(snapshot.getParentFile(), NAME + "." + (generation(snapshot) + 1));
+    }
+    
+    // Deletes the snapshots of the generations before the given one, those which are still mapped are left to the next
+    // time it's called
+    static void deleteOlder(File snapshot) {
+        File[] files = snapshot.getAbsoluteFile().getParentFile().listFiles();
+        if(files == null) return;
+        long generation = generation(snapshot);
+        for(File file : files) {
+            long older = generation(file);
+            if(older >= 0 && older < generation)
+                file.delete();
+        }
+    }
+    
+    // -1 if the file isn't a snapshot
+    private static long generation(File file) {
+        String name = file.getName();
+        if(name.equals(NAME))
+            return 0L;
+        if(!name.startsWith(NAME + ".")) return -1L;
+        try {
+            return Long.parseLong(name.substring(NAME.length() + 1));
+        }catch(NumberFormatException ex) {
+            // including the temporary files of unfinished snapshots
+            return -1L;
+        }
+    }
+    
+    int accountCount() {
+        return accountCount;
+    }
+    
+    int permissionCount() {
+        return permissionCount;
+    }
+    
+    int lastIncarnation() {
+        return lastIncarnation;
+    }
+    
+    String[] pendingAccounts() {
+        ByteBuffer record = record(pendingOffset);
+        String[] usernames = new String[ByteHelper.readInt(0, record)];
+        int index = 4;
+        for(int i = 0;i < usernames.length;++ i) {
+            usernames[i] = ByteHelper.readString(index, record);
+            index += usernames[i].length() + 1;
+        }
+        return usernames;
+    }
+    
+    Account account(int id) {
+        return Account.deserialize(record(accountIndex, id), 0);
+    }
+    
+    byte[] accountRecord(int id) {
+        return bytes(accountIndex, id);
+    }
+    
+    String username(int id) {
+        // an account record starts with its ID
+        return ByteHelper.readString(4, record(accountIndex, id));
+    }
+    
+    // -1 if there's no account by that name
+    int accountID(String username) {
+        String name = username.toLowerCase();
+        int low = 0, high = accountCount - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int id = map.getInt((int)(nameIndex + 4L * mid));
+            int cmp = username(id).toLowerCase().compareTo(name);
+            if(cmp == 0)
+                return id;
+            if(cmp < 0)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return -1;
+    }
+    
+    String permissionKey(int i) {
+        return ByteHelper.readString(0, record(permissionIndex, i));
+    }
+    
+    byte[] permissionRecord(int i) {
+        return bytes(permissionIndex, i);
+    }
+    
+    // -1 if there's no permission with that key
+    int permissionIndex(String key) {
+        int low = 0, high = permissionCount - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = permissionKey(mid).compareTo(key);
+            if(cmp == 0)
+                return mid;
+            if(cmp < 0)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return -1;
+    }
+    
+    // only a snapshot of version 1 is scanned for it, once, since the next one has it in its header
+    private int highestIncarnation() {
+        int highest = 0;
+        for(int id = 0;id < accountCount;++ id)
+            highest = Math.max(highest, account(id).incarnation);
+        return highest;
+    }
+    
+    private ByteBuffer record(long index, int i) {
+        return new ByteBuffer(bytes(index, i));
+    }
+    
+    private byte[] bytes(long index, int i) {
+        int entry = (int)(index + (long)INDEX_ENTRY_SIZE * i);
+        return read(map.getLong(entry), map.getInt(entry + 8));
+    }
+    
+    // the pending accounts are a single record, framed by its length
+    private ByteBuffer record(long offset) {
+        return new ByteBuffer(read(offset + 4, map.getInt((int)offset)));
+    }
+    
+    private byte[] read(long offset, int length) {
+        byte[] bytes = new byte[length];
+        java.nio.ByteBuffer view = map.duplicate();
+        view.position((int)offset);
+        view.get(bytes);
+        return bytes;
+    }
+    
+    // Streams a snapshot out to a file next to the target, which is moved into place once it's complete. Accounts are
+    // added in order of their IDs, and permissions in order of their keys.
+    static final class Writer implements Closeable {
+        private final File target;
+        private final File tmp;
+        private final DataOutputStream out;
+        private long position;
+        private final List<long[]> accounts;
+        private final List<String> usernames;
+        private final List<long[]> permissions;
+        private long pendingOffset;
+        private int lastIncarnation;
+        
+        Writer(File target) throws IOException {
+            this.target = target;
+            this.tmp = new File(target.getPath() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            this.accounts = new ArrayList<>();
+            this.usernames = new ArrayList<>();
+            this.permissions = new ArrayList<>();
+            this.pendingOffset = -1L;
+            out.write(new byte[HEADER_SIZE]);
+            this.position = HEADER_SIZE;
+        }
+        
+        void account(byte[] record, String username) throws IOException {
+            accounts.add(new long[] {position, record.length});
+            usernames.add(username.toLowerCase());
+            write(record);
+        }
+        
+        void pendingAccounts(String[] usernames) throws IOException {
+            ByteBuffer record = new ByteBuffer();
+            ByteHelper.writeInt(usernames.length, record);
+            for(String username : usernames)
+                ByteHelper.writeString(username, record);
+            byte[] bytes = record.toArray();
+            pendingOffset = position;
+            out.writeInt(bytes.length);
+            position += 4;
+            write(bytes);
+        }
+        
+        void lastIncarnation(int incarnation) {
+            lastIncarnation = incarnation;
+        }
+        
+        void permission(byte[] record) throws IOException {
+            permissions.add(new long[] {position, record.length});
+            write(record);
+        }
+        
+        void finish() throws IOException {
+            if(pendingOffset < 0)
+                pendingAccounts(new String[0]);
+            long accountIndex = position;
+            writeIndex(accounts);
+            long nameIndex = position;
+            Integer[] byName = new Integer[usernames.size()];
+            for(int i = 0;i < byName.length;++ i)
+                byName[i] = i;
+            Arrays.sort(byName, (a, b) -> usernames.get(a).compareTo(usernames.get(b)));
+            for(Integer id : byName)
+                out.writeInt(id);
+            position += 4L * byName.length;
+            long permissionIndex = position;
+            writeIndex(permissions);
+            out.close();
+            try(RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                raf.writeLong(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(accounts.size());
+                raf.writeInt(permissions.size());
+                raf.writeLong(pendingOffset);
+                raf.writeLong(accountIndex);
+                raf.writeLong(nameIndex);
+                raf.writeLong(permissionIndex);
+                raf.writeInt(lastIncarnation);
+                raf.getFD().sync();
+            }
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            // the rename itself only survives a crash once the directory is synced too
+            Utils.sync(target.getAbsoluteFile().getParentFile());
+        }
+        
+        // only does anything if the snapshot wasn't finished
+        @Override
+        public void close() throws IOException {
+            if(tmp.exists()) {
+                out.close();
+                tmp.delete();
+            }
+        }
+        
+        private void write(byte[] record) throws IOException {
+            out.write(record);
+            position += record.length;
+        }
+        
+        private void writeIndex(List<long[]> entries) throws IOException {
+            for(long[] entry : entries) {
+                out.writeLong(entry[0]);
+                out.writeInt((int)entry[1]);
+            }
+            position += (long)INDEX_ENTRY_SIZE * entries.size();
+        }
+    }
+}
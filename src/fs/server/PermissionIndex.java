@@ -0,0 +1,164 @@
+package fs.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import stg.generic.ByteBuffer;
+import stg.generic.ByteHelper;
+import stg.nbt.NbtTagList;
+
+// The permissions of every stored file by its path relative to the storage directory, so that checking them doesn't
+// take a pass over all of them.
+//
+// Those of the MetadataSnapshot the server started from are only decoded once they're looked up, what's been looked up
+// or changed since is held in memory.
+final class PermissionIndex {
+    private final Path storageDir;
+    private MetadataSnapshot base;
+    private final Map<String, Entry> entries;
+    // keys which have been removed since the base was written, whether or not it has them
+    private final Set<String> removed;
+    
+    PermissionIndex(File storageDir, MetadataSnapshot base) {
+        this.storageDir = storageDir.toPath().toAbsolutePath().normalize();
+        this.base = base;
+        this.entries = new HashMap<>();
+        this.removed = new HashSet<>();
+    }
+    
+    // the FilePermission list of fperms.nbt, which they were kept in before there were snapshots
+    PermissionIndex(File storageDir, NbtTagList legacy) {
+        this(storageDir, (MetadataSnapshot)null);
+        for(int i = 0;i < legacy.size();++ i) {
+            FilePermission fp = (FilePermission)legacy.getObject(i);
+            // uploading over a file used to add a second entry for it, of which only the first was ever checked
+            entries.putIfAbsent(key(fp.getFile()), new Entry(fp));
+        }
+    }
+    
+    // null if no permissions were ever set for the file
+    synchronized Entry get(File file) {
+        String key = key(file);
+        Entry entry = entries.get(key);
+        if(entry != null || base == null || removed.contains(key))
+            return entry;
+        int i = base.permissionIndex(key);
+        if(i < 0) return null;
+        entry = Entry.decode(base.permissionRecord(i));
+        entries.put(key, entry);
+        return entry;
+    }
+    
+    // replaces whatever permissions the file had
+    synchronized void put(FilePermission fp) {
+        entries.put(key(fp.getFile()), new Entry(fp));
+    }
+    
+    synchronized boolean remove(File file) {
+        String key = key(file);
+        boolean existed = entries.remove(key) != null;
+        if(base != null && !removed.contains(key) && base.permissionIndex(key) >= 0)
+            existed = true;
+        // kept even if the base doesn't have it, since the snapshot being written might (see rebase)
+        if(existed)
+            removed.add(key);
+        return existed;
+    }
+    
+    // Moves onto the snapshot the index was just written to, so the old one is no longer mapped. Only removals of keys
+    // it still has, which were made while it was being written, need to be remembered.
+    synchronized void rebase(MetadataSnapshot snapshot) {
+        base = snapshot;
+        removed.removeIf(key -> snapshot.permissionIndex(key) < 0);
+    }
+    
+    // Merges what's changed into the permissions of the base, in order of their keys. Those which were never decoded
+    // are copied over as they are.
+    void writeTo(MetadataSnapshot.Writer writer) throws IOException {
+        TreeMap<String, Entry> changed;
+        Set<String> dropped;
+        MetadataSnapshot base;
+        synchronized(this) {
+            changed = new TreeMap<>(entries);
+            dropped = new HashSet<>(removed);
+            base = this.base;
+        }
+        Iterator<Map.Entry<String, Entry>> it = changed.entrySet().iterator();
+        Map.Entry<String, Entry> next = it.hasNext() ? it.next() : null;
+        int count = base == null ? 0 : base.permissionCount();
+        for(int i = 0;i < count;++ i) {
+            String key = base.permissionKey(i);
+            while(next != null && next.getKey().compareTo(key) <= 0) {
+                writer.permission(next.getValue().encode(next.getKey()));
+                if(next.getKey().equals(key))
+                    key = null;
+                next = it.hasNext() ? it.next() : null;
+            }
+            if(key != null && !dropped.contains(key))
+                writer.permission(base.permissionRecord(i));
+        }
+        for(;next != null;next = it.hasNext() ? it.next() : null)
+            writer.permission(next.getValue().encode(next.getKey()));
+    }
+    
+    // Only normalizes the path, without asking the file system
+    private String key(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        return path.startsWith(storageDir) ? storageDir.relativize(path).toString() : path.toString();
+    }
+    
+    static final class Entry {
+        final FilePermission fp;
+        final String uploader;
+        final Set<String> downloaders;
+        
+        Entry(FilePermission fp) {
+            this.fp = fp;
+            this.uploader = fp.getUploader();
+            this.downloaders = new HashSet<>(fp.getDownloaders());
+        }
+        
+        // an empty list of downloaders shares the file with everyone
+        boolean canDownload(String account) {
+            return downloaders.isEmpty() || downloaders.contains(account) || account.equals(uploader);
+        }
+        
+        // key, path, uploader, then the downloaders
+        byte[] encode(String key) {
+            ByteBuffer record = new ByteBuffer();
+            ByteHelper.writeString(key, record);
+            ByteHelper.writeString(fp.getFile().getAbsolutePath(), record);
+            ByteHelper.writeString(uploader, record);
+            ByteHelper.writeInt(fp.getDownloaders().size(), record);
+            for(String downloader : fp.getDownloaders())
+                ByteHelper.writeString(downloader, record);
+            return record.toArray();
+        }
+        
+        static Entry decode(byte[] bytes) {
+            ByteBuffer record = new ByteBuffer(bytes);
+            int index = ByteHelper.readString(0, record).length() + 1;
+            String path = ByteHelper.readString(index, record);
+            index += path.length() + 1;
+            String uploader = ByteHelper.readString(index, record);
+            index += uploader.length() + 1;
+            int count = ByteHelper.readInt(index, record);
+            index += 4;
+            List<String> downloaders = new ArrayList<>(count);
+            for(int i = 0;i < count;++ i) {
+                String downloader = ByteHelper.readString(index, record);
+                index += downloader.length() + 1;
+                downloaders.add(downloader);
+            }
+            return new Entry(new FilePermission(new File(path), downloaders, uploader));
+        }
+    }
+}
@@ -7,9 +7,13 @@ import fs.common.CommandHandler;
 import fs.common.DataHandler;
 import fs.common.ExitCode;
 import fs.common.Security;
+import fs.network.Connection;
+import fs.network.ftp.AsyncFileFragmentAggregator;
+import fs.network.packet.DataChannelPacket;
 import fs.network.packet.LoginRequestPacket;
+import fs.network.packet.SessionTokenPacket;
 import io.vertx.core.net.NetServer;
-import io.vertx.core.net.SocketAddress;
+import io.vertx.core.net.NetSocket;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
@@ -19,9 +23,15 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
 import stg.config.ConfigFormatException;
 import stg.config.ini.IniFile;
@@ -32,14 +42,22 @@ import stg.nbt.NbtTagList;
 public final class Server extends Thread {
     private final NetServer tcpServer;
     private final IniFile config;
-    private DataHandler dat;
-    private HashMap<SocketAddress, Account> verifiedClients;
+    private ChunkStore chunkStore;
+    private FileCache fileCache;
+    private PermissionIndex permissions;
+    private AccountDirectory accounts;
+    private MetadataJournal journal;
+    private File snapshotFile;
+    // usernames which an account may be created for, guarded by the server
+    private List<String> pendingAccounts;
+    // logged in connections by the token their data connections join with
+    private final Map<String, Connection> sessions;
     
     public Server(String configDir) {
         this.tcpServer = Utils.VERTX.createNetServer();
+        this.sessions = new ConcurrentHashMap<>();
         initCommandHandler();
         this.config = new IniFile(configDir);
-        this.verifiedClients = new HashMap<>();
         try {
             initConfig();
             InstanceHandler.config = config;
@@ -68,6 +86,11 @@ public final class Server extends Thread {
         config.putNumber("tcpPort", 5001);
         config.putString("fileStorageDir", "files");
         config.putString("dataDir", "metadata");
+        config.putString("zeroCopyDownloads", "true");
+        config.setComment("Memory small files are kept in for repeated downloads, in KiB").putNumber("fileCacheSize", 65536);
+        config.setComment("Files up to this size are cached, in KiB, 0 to disable the cache").putNumber("fileCacheMaxFileSize", 1024);
+        config.setComment("How long metadata changes are held back to be written along with others, in milliseconds").putNumber("metadataCommitDelay", 10);
+        config.setComment("The most metadata changes written at once").putNumber("metadataCommitBatch", 256);
         
         config.sync(false);
         config.save();
@@ -78,18 +101,64 @@ public final class Server extends Thread {
             fileStorageDir.mkdirs();
     }
     
+    // The metadata is mapped from the last snapshot rather than read in, records are only decoded once they're needed
     private void initDataHandler() throws IOException, NbtException {
-        dat = (InstanceHandler.dataHandler = new DataHandler(config.getString("dataDir"), "caches.nbt", "fperms.nbt"));
-        dat.loadData();
-        NbtTagCompound caches = dat.getFileData("caches.nbt");
-        if(!caches.containsKey("pendingAccounts"))
-            caches.setStringArray("pendingAccounts", new String[0]);
-        if(!caches.containsKey("accounts"))
-            caches.setTag("accounts", new NbtTagList());
-        NbtTagCompound fperms = dat.getFileData("fperms.nbt");
-        if(!fperms.containsKey("main"))
-            fperms.setTag("main", new NbtTagList());
-        dat.saveData();
+        File dataDir = new File(config.getString("dataDir"));
+        File fileStorageDir = new File(config.getString("fileStorageDir"));
+        snapshotFile = MetadataSnapshot.latest(dataDir);
+        MetadataSnapshot.deleteOlder(snapshotFile);
+        MetadataSnapshot snapshot = MetadataSnapshot.open(snapshotFile);
+        if(snapshot != null) {
+            accounts = new AccountDirectory(snapshot);
+            permissions = new PermissionIndex(fileStorageDir, snapshot);
+            pendingAccounts = new ArrayList<>(Arrays.asList(snapshot.pendingAccounts()));
+        }else {
+            // caches.nbt and fperms.nbt are only read to migrate them, and left where they are
+            NbtTagCompound caches = new NbtTagCompound(), fperms = new NbtTagCompound();
+            if(new File(dataDir, "caches.nbt").exists() || new File(dataDir, "fperms.nbt").exists()) {
+                DataHandler legacy = new DataHandler(dataDir.getPath(), "caches.nbt", "fperms.nbt");
+                legacy.loadData();
+                caches = legacy.getFileData("caches.nbt");
+                fperms = legacy.getFileData("fperms.nbt");
+            }
+            accounts = new AccountDirectory(caches.containsKey("accounts") ? caches.getTagList("accounts") : new NbtTagList());
+            permissions = new PermissionIndex(fileStorageDir, fperms.containsKey("main") ? fperms.getTagList("main") : new NbtTagList());
+            pendingAccounts = caches.containsKey("pendingAccounts") ? caches.getStringArrayAsList("pendingAccounts") : new ArrayList<>();
+        }
+        journal = new MetadataJournal(new File(dataDir, "metadata.journal"), this::writeSnapshot,
+                config.getNumberAsInteger("metadataCommitDelay"), config.getNumberAsInteger("metadataCommitBatch"));
+        journal.open(new Replay(this));
+        if(snapshot == null)
+            journal.compact();
+        chunkStore = new ChunkStore(new File(config.getString("dataDir"), "chunks"), new File(config.getString("fileStorageDir")));
+        fileCache = new FileCache((long)config.getNumberAsInteger("fileCacheSize") << 10, (long)config.getNumberAsInteger("fileCacheMaxFileSize") << 10);
+    }
+    
+    // The metadata is rebased on the new snapshot, so the last one can be deleted once it's no longer mapped
+    private void writeSnapshot() throws IOException {
+        File next = MetadataSnapshot.next(snapshotFile);
+        try(MetadataSnapshot.Writer writer = new MetadataSnapshot.Writer(next)) {
+            accounts.writeTo(writer);
+            writer.pendingAccounts(pendingAccounts());
+            permissions.writeTo(writer);
+            writer.finish();
+        }
+        MetadataSnapshot snapshot = MetadataSnapshot.open(next);
+        accounts.rebase(snapshot);
+        permissions.rebase(snapshot);
+        snapshotFile = next;
+        MetadataSnapshot.deleteOlder(next);
+    }
+    
+    private synchronized String[] pendingAccounts() {
+        return pendingAccounts.toArray(new String[pendingAccounts.size()]);
+    }
+    
+    // Journaled while the server is locked, so the records are in the order the changes were made in
+    private synchronized String[] journalPendingAccounts() {
+        String[] usernames = pendingAccounts();
+        journal.pendingAccounts(usernames);
+        return usernames;
     }
     
     @Override
@@ -98,14 +167,15 @@ public final class Server extends Thread {
     }
     
     public void startServer() {
+        AsyncFileFragmentAggregator.sweepStaging();
         InstanceHandler.commandHandler.start();
         InstanceHandler.NETWORK_HANDLER.packetValidationHandler(
-            (socket, packet) -> verifiedClients.containsKey(socket.remoteAddress()) || LoginRequestPacket.class.equals(packet.getClass())
+            (connection, packet) -> connection.isAuthenticated() || LoginRequestPacket.class.equals(packet.getClass())
+                    || DataChannelPacket.class.equals(packet.getClass())
         );
-        tcpServer.connectHandler(socket -> {
-            InstanceHandler.NETWORK_HANDLER.bindNetworkHandlers(socket);
-            socket.closeHandler(unused -> verifiedClients.remove(socket.remoteAddress()));
-        }).listen(config.getNumberAsInteger("tcpPort"));
+        tcpServer.connectHandler(socket -> InstanceHandler.NETWORK_HANDLER.bindNetworkHandlers(socket,
+                unused -> sessions.values().removeIf(connection -> connection.getSocket() == socket)))
+                .listen(config.getNumberAsInteger("tcpPort"));
     }
     
     @Override
@@ -116,83 +186,160 @@ public final class Server extends Thread {
     
     public void stopServer() {
         tcpServer.close();
+        try {
+            journal.compact();
+            journal.close();
+        }catch(IOException ex) {
+            Utils.err("Failed to save data.");
+            Utils.logError(ex);
+        }
+    }
+    
+    public ChunkStore getChunkStore() {
+        return chunkStore;
+    }
+    
+    public FileCache getFileCache() {
+        return fileCache;
     }
     
-    public void validateAccount(SocketAddress addr, Account account) {
-        verifiedClients.put(addr, account);
+    public boolean zeroCopyDownloads() {
+        return Boolean.parseBoolean(config.getString("zeroCopyDownloads"));
+    }
+    
+    public void validateAccount(NetSocket socket, Account account) {
+        Connection connection = InstanceHandler.NETWORK_HANDLER.getConnection(socket);
+        connection.authenticate(account);
+        String token = Security.newSessionToken();
+        sessions.put(token, connection);
+        InstanceHandler.NETWORK_HANDLER.sendPacket(new SessionTokenPacket(token), socket);
+    }
+    
+    // False if there's no session with that token, or the connection is already part of a session, as a data
+    // connection or as the main one
+    public boolean joinSession(NetSocket socket, String token) {
+        Connection main = sessions.get(token);
+        Connection connection = InstanceHandler.NETWORK_HANDLER.getConnection(socket);
+        if(main == null || connection.isAuthenticated())
+            return false;
+        connection.joinSession(main);
+        return true;
     }
     
     public Account createAccount(String username, byte[] password) {
-        NbtTagCompound caches = dat.getFileData("caches.nbt");
-        List<String> pendingAccounts = caches.getStringArrayAsList("pendingAccounts");
-        if(!pendingAccounts.contains(username.toLowerCase()))
-            return null;
-        pendingAccounts.remove(username.toLowerCase());
-        caches.setStringArray("pendingAccounts", pendingAccounts.toArray(new String[pendingAccounts.size()]));
+        synchronized(this) {
+            if(!pendingAccounts.remove(username.toLowerCase()))
+                return null;
+            journalPendingAccounts();
+        }
         
         NbtTagCompound account = new NbtTagCompound();
-        account.setInteger("id", caches.getTagList("accounts").size());
         account.setString("username", username.toLowerCase());
         account.setByteArray("password", Security.salt(Security.salt(password, Security.CLIENT_SALT), Security.SERVER_SALT));
-        account.setTag("data", new NbtTagCompound());
-        caches.getTagList("accounts").appendTag(account);
-        
-        InstanceHandler.saveData();
+        Account created = accounts.create(account);
+        journal.accountSaved(created);
         
-        return new Account(account);
+        return created;
     }
     
-    public void saveAccountData(Account a) {
-        dat.getFileData("caches.nbt").getTagList("accounts").setTag(a.id, a.toTagCompound());
+    // The futures returned by the methods which change metadata complete once the change is on disk
+    public CompletableFuture<Void> saveAccountData(Account a) {
+        synchronized(a.data) {
+            return journal.accountSaved(a);
+        }
     }
     
+    // null if there's no account with that ID
     public Account getAccount(int accountID) {
-        NbtTagCompound nbt = dat.getFileData("caches.nbt").getTagList("accounts").getTagCompound(accountID);
-        if(!nbt.containsKey("data"))
-            nbt.setTag("data", new NbtTagCompound());
-        return new Account(nbt);
+        return accounts.get(accountID);
     }
     
     public Account getAccount(String username) {
-        NbtTagList accounts = dat.getFileData("caches.nbt").getTagList("accounts");
-        for(int i = 0;i < accounts.size();++ i) {
-            NbtTagCompound nbt = accounts.getTagCompound(i);
-            if(username.equalsIgnoreCase(nbt.getString("username"))) {
-                if(nbt.getInteger("id") != i)
-                    nbt.setInteger("id", i);
-                if(!nbt.containsKey("data"))
-                    nbt.setTag("data", new NbtTagCompound());
-                return new Account(nbt);
-            }
+        return accounts.get(username);
+    }
+    
+    // replaces the permissions of a file which is uploaded over
+    public CompletableFuture<Void> setFilePermissions(File file, String uploader, List<String> downloaders) {
+        FilePermission fp = new FilePermission(file, downloaders, uploader);
+        // journaled while the index is locked, so the records are in the order the changes were made in
+        synchronized(permissions) {
+            permissions.put(fp);
+            return journal.permissionSet(fp);
+        }
+    }
+    
+    private void removeFilePermissions(File file) {
+        synchronized(permissions) {
+            if(permissions.remove(file))
+                journal.permissionRemoved(file);
         }
-        return null;
     }
     
-    public void setFilePermissions(File file, String uploader, List<String> downloaders) {
-        NbtTagList fps = dat.getFileData("fperms.nbt").getTagList("main");
-        fps.appendObject(new FilePermission(file, downloaders, uploader));
-        InstanceHandler.saveData();
+    public CompletableFuture<Void> setFilePermissions(List<File> files, String uploader, List<String> downloaders) {
+        CompletableFuture<?>[] saved = new CompletableFuture<?>[files.size()];
+        for(int i = 0;i < saved.length;++ i)
+            saved[i] = setFilePermissions(files.get(i), uploader, new ArrayList<>(downloaders));
+        return CompletableFuture.allOf(saved);
     }
     
     public boolean checkDelete(File file, String account) {
-        NbtTagList fps = dat.getFileData("fperms.nbt").getTagList("main");
-        for(int i = 0;i < fps.size();++ i) {
-            FilePermission fp = (FilePermission)fps.getObject(i);
-            if(file.getAbsolutePath().equals(fp.getFile().getAbsolutePath()) && account.equals(fp.getUploader()))
-                return true;
-        }
+        PermissionIndex.Entry entry = permissions.get(file);
+        if(entry != null && account.equals(entry.uploader))
+            return true;
         return !file.exists();
     }
     
     public boolean checkDownload(File file, String account) {
-        NbtTagList fps = dat.getFileData("fperms.nbt").getTagList("main");
-        for(int i = 0;i < fps.size();++ i) {
-            FilePermission fp = (FilePermission)fps.getObject(i);
-            if(file.getAbsolutePath().equals(fp.getFile().getAbsolutePath())) {
-                return fp.getDownloaders().contains(account) || fp.getDownloaders().isEmpty() || account.equals(fp.getUploader());
+        PermissionIndex.Entry entry = permissions.get(file);
+        if(entry != null)
+            return entry.canDownload(account);
+        return file.getParent().equals(config.getString("fileStorageDir"));
+    }
+    
+    // The chunks an upload over the file may claim without sending them (see ChunkStore), which are those of the stored
+    // copy if the account can download it. A hash alone proves nothing, anyone who learned it could otherwise claim the
+    // chunk and download it as part of their own file.
+    public Set<String> claimableChunks(File file, String account) {
+        ChunkStore.Manifest manifest = ChunkStore.readManifest(file);
+        if(manifest == null || account == null || !checkDownload(file, account))
+            return Collections.emptySet();
+        return new HashSet<>(Arrays.asList(manifest.hashes));
+    }
+    
+    // Applies the records of the metadata journal left over from the last run
+    private static final class Replay implements MetadataJournal.Target {
+        final Server server;
+        
+        public Replay(Server server) {
+            this.server = server;
+        }
+        
+        @Override
+        public void accountSaved(Account account) {
+            server.accounts.restore(account);
+        }
+        
+        @Override
+        public void accountRemoved(String username, int incarnation) {
+            server.accounts.remove(username, incarnation);
+        }
+        
+        @Override
+        public void pendingAccounts(String[] usernames) {
+            synchronized(server) {
+                server.pendingAccounts = new ArrayList<>(Arrays.asList(usernames));
             }
         }
-        return file.getParent().equals(config.getString("fileStorageDir"));
+        
+        @Override
+        public void permissionSet(FilePermission fp) {
+            server.permissions.put(fp);
+        }
+        
+        @Override
+        public void permissionRemoved(File file) {
+            server.permissions.remove(file);
+        }
     }
     
     private static final class CommandImpl implements BiConsumer<Command, String[]> {
@@ -248,13 +395,13 @@ public final class Server extends Thread {
                         Utils.log("Invalid username.");
                         return;
                     }
-                    List<String> cachedAccounts = server.dat.getFileData("caches.nbt").getStringArrayAsList("pendingAccounts");
-                    cachedAccounts.add(args[0]);
+                    String[] caa;
+                    synchronized(server) {
+                        server.pendingAccounts.add(args[0]);
+                        caa = server.journalPendingAccounts();
+                    }
                     Utils.log("Cached account.");
-                    String[] caa = cachedAccounts.toArray(new String[cachedAccounts.size()]);
-                    server.dat.getFileData("caches.nbt").setStringArray("pendingAccounts", caa);
-                    Utils.log("Cached accounts: " + Arrays.toString(server.dat.getFileData("caches.nbt").getStringArray("pendingAccounts")));
-                    InstanceHandler.saveData();
+                    Utils.log("Cached accounts: " + Arrays.toString(caa));
                     break;
                 }
                 case UNCACHE_ACCOUNT:
@@ -263,13 +410,13 @@ public final class Server extends Thread {
                         Utils.log("Usage: uncache-account <username>");
                         return;
                     }
-                    List<String> cachedAccounts = server.dat.getFileData("caches.nbt").getStringArrayAsList("pendingAccounts");
-                    cachedAccounts.remove(args[0]);
+                    String[] caa;
+                    synchronized(server) {
+                        server.pendingAccounts.remove(args[0]);
+                        caa = server.journalPendingAccounts();
+                    }
                     Utils.log("Uncached account.");
-                    String[] caa = cachedAccounts.toArray(new String[cachedAccounts.size()]);
-                    server.dat.getFileData("caches.nbt").setStringArray("pendingAccounts", caa);
-                    Utils.log("Cached accounts: " + Arrays.toString(server.dat.getFileData("caches.nbt").getStringArray("pendingAccounts")));
-                    InstanceHandler.saveData();
+                    Utils.log("Cached accounts: " + Arrays.toString(caa));
                     break;
                 }
                 case DEL_ACCOUNT:
@@ -278,26 +425,23 @@ public final class Server extends Thread {
                         Utils.log("Usage: delete-account <username>");
                         return;
                     }
-                    NbtTagList accounts = server.dat.getFileData("caches.nbt").getTagList("accounts");
-                    for(int i = 0;i < accounts.size();++ i) {
-                        if(accounts.getTagCompound(i).getString("username").equalsIgnoreCase(args[0])) {
-                            accounts.remove(i);
-                            Utils.log("Removed account.");
-                            return;
-                        }
-                    }
-                    Utils.log("An account with that username does not exist.");
+                    Account removed = server.accounts.remove(args[0]);
+                    if(removed != null) {
+                        server.journal.accountRemoved(removed);
+                        Utils.log("Removed account.");
+                    }else
+                        Utils.log("An account with that username does not exist.");
                     break;
                 }
                 case ACCOUNTS:
                 {
-                    NbtTagList accounts = server.dat.getFileData("caches.nbt").getTagList("accounts");
-                    if(accounts.size() == 0) {
+                    List<Account> accounts = server.accounts.all();
+                    if(accounts.isEmpty()) {
                         Utils.log("There are no accounts.");
                         return;
                     }
-                    for(int i = 0;i < accounts.size();++ i)
-                        Utils.log("Account#" + i + ": " + accounts.getTagCompound(i).getString("username"));
+                    for(Account account : accounts)
+                        Utils.log("Account#" + account.id + ": " + account.username);
                     break;
                 }
                 case DELETE_FILE:
@@ -311,16 +455,19 @@ public final class Server extends Thread {
                         Utils.log("That file does not exist.");
                         return;
                     }
-                    NbtTagList fps = server.dat.getFileData("fperms.nbt").getTagList("main");
-                    int index = -1;
-                    for(int i = 0;i < fps.size();++ i) {
-                        FilePermission fp = (FilePermission)fps.getObject(i);
-                        if(file.getAbsolutePath().equals(fp.getFile().getAbsolutePath()))
-                            index = i;
-                    }
                     Utils.log("Deleted file.");
-                    if(index != -1) fps.remove(index);
-                    file.delete();
+                    server.removeFilePermissions(file);
+                    try {
+                        server.chunkStore.delete(file);
+                    }catch(IOException ex) {
+                        Utils.logError(ex);
+                    }
+                    server.fileCache.invalidate(file);
+                    break;
+                }
+                case CACHE_STATS:
+                {
+                    Utils.log(server.fileCache.stats());
                     break;
                 }
                 default: Utils.log(cmd + " is not supported.");